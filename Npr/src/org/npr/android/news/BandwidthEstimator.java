@@ -0,0 +1,206 @@
+// Copyright 2012 NPR
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.npr.android.news;
+
+import android.util.Log;
+
+import java.util.Hashtable;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Estimates how fast audio can be pulled over the current route from
+ * throughput samples taken by the StreamProxy, and uses the estimate to
+ * choose among a station's streams at different bit rates. Traffic through
+ * Tor and direct traffic are estimated separately, since their capacity
+ * differs by an order of magnitude.
+ */
+public class BandwidthEstimator {
+  private static final String LOG_TAG = BandwidthEstimator.class.getName();
+
+  // Weight of each new sample in the running estimate
+  private static final double SMOOTHING = 0.3;
+  // A stream is sustainable if the route carries it with this much to spare
+  private static final double HEADROOM = 1.5;
+
+  private static final Pattern BITRATE = Pattern.compile(
+      "(?<![0-9])([0-9]{2,3})\\s*k(?:bps|b/s|bit|b)?(?![a-z])",
+      Pattern.CASE_INSENSITIVE);
+
+  private static final BandwidthEstimator torEstimator =
+      new BandwidthEstimator();
+  private static final BandwidthEstimator directEstimator =
+      new BandwidthEstimator();
+
+  // Bit rates in kbps announced by servers, keyed by stream URL
+  private static final Hashtable<String, Integer> announcedBitrates =
+      new Hashtable<String, Integer>();
+
+  private double estimate = -1;
+
+  private synchronized void add(long bytesPerSecond) {
+    if (estimate < 0) {
+      estimate = bytesPerSecond;
+    } else {
+      estimate += SMOOTHING * (bytesPerSecond - estimate);
+    }
+  }
+
+  private synchronized long get() {
+    return (long) estimate;
+  }
+
+  private synchronized void clear() {
+    estimate = -1;
+  }
+
+  /**
+   * Forgets every sample and announced bit rate, as for a test.
+   */
+  static void reset() {
+    torEstimator.clear();
+    directEstimator.clear();
+    announcedBitrates.clear();
+  }
+
+  private static BandwidthEstimator forRoute(boolean viaTor) {
+    return viaTor ? torEstimator : directEstimator;
+  }
+
+  public static void addSample(boolean viaTor, long bytesPerSecond) {
+    if (bytesPerSecond > 0) {
+      forRoute(viaTor).add(bytesPerSecond);
+    }
+  }
+
+  /**
+   * @return The estimated throughput of the route in bytes per second, or
+   * -1 if there have been no samples yet
+   */
+  public static long getEstimate(boolean viaTor) {
+    return forRoute(viaTor).get();
+  }
+
+  /**
+   * Remembers the bit rate a server announced for a stream, as in a
+   * SHOUTcast icy-br header. This beats any guess made from the stream's
+   * title.
+   */
+  public static void setBitrate(String url, int kbps) {
+    if (kbps > 0) {
+      announcedBitrates.put(url, kbps);
+    }
+  }
+
+  /**
+   * @return A bit rate in kbps mentioned in text such as "WXYZ 128k", or 0
+   */
+  public static int guessBitrate(String text) {
+    if (text == null) {
+      return 0;
+    }
+    Matcher matcher = BITRATE.matcher(text);
+    return matcher.find() ? Integer.parseInt(matcher.group(1)) : 0;
+  }
+
+  /**
+   * @return text without any bit rate in it, for telling whether two streams
+   * carry the same programming
+   */
+  public static String stripBitrate(String text) {
+    if (text == null) {
+      return "";
+    }
+    return BITRATE.matcher(text).replaceAll("").replaceAll("\\s+", " ")
+        .trim().toLowerCase();
+  }
+
+  /**
+   * @return The bit rate of a stream in kbps, or 0 if it isn't known
+   */
+  public static int getBitrate(String url, int guessedKbps) {
+    Integer announced = announcedBitrates.get(url);
+    return announced != null ? announced : guessedKbps;
+  }
+
+  /**
+   * Picks the highest bit rate stream the route can sustain. Until the route
+   * has been sampled that is the lowest bit rate stream, which starts
+   * quickest and whose throughput lets later choices step up.
+   *
+   * @param kbps The guessed bit rate of each stream, 0 if unknown
+   * @param ceiling The highest bit rate to consider, or 0 for no limit
+   * @return The index of the chosen stream, or -1 if there isn't enough
+   * information to choose
+   */
+  public static int choose(String[] urls, int[] kbps, int ceiling,
+                           boolean viaTor) {
+    long estimate = getEstimate(viaTor);
+    int best = -1;
+    int bestRate = 0;
+    int lowest = -1;
+    int lowestRate = Integer.MAX_VALUE;
+    for (int i = 0; i < urls.length; i++) {
+      int rate = getBitrate(urls[i], kbps[i]);
+      if (rate <= 0 || (ceiling > 0 && rate > ceiling)) {
+        continue;
+      }
+      if (rate < lowestRate) {
+        lowest = i;
+        lowestRate = rate;
+      }
+      boolean sustainable = estimate >= 0 &&
+          rate * 1000 / 8 * HEADROOM <= estimate;
+      if (sustainable && rate > bestRate) {
+        best = i;
+        bestRate = rate;
+      }
+    }
+    if (best < 0) {
+      best = lowest;
+    }
+    if (best >= 0) {
+      Log.d(LOG_TAG, "Chose " + getBitrate(urls[best], kbps[best]) +
+          " kbps stream with estimate of " + estimate + " B/s");
+    }
+    return best;
+  }
+
+  /**
+   * @return The index of the highest bit rate stream below the current one,
+   * or -1 if there is none or the current bit rate isn't known
+   */
+  public static int stepDown(String[] urls, int[] kbps, String currentUrl) {
+    int currentRate = 0;
+    for (int i = 0; i < urls.length; i++) {
+      if (urls[i].equals(currentUrl)) {
+        currentRate = getBitrate(urls[i], kbps[i]);
+      }
+    }
+    if (currentRate <= 0) {
+      return -1;
+    }
+    int lower = -1;
+    int lowerRate = 0;
+    for (int i = 0; i < urls.length; i++) {
+      int rate = getBitrate(urls[i], kbps[i]);
+      if (rate > 0 && rate < currentRate && rate > lowerRate) {
+        lower = i;
+        lowerRate = rate;
+      }
+    }
+    return lower;
+  }
+}
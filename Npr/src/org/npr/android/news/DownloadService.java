@@ -0,0 +1,541 @@
+// Copyright 2012 NPR
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.npr.android.news;
+
+import android.app.Service;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.net.Uri;
+import android.os.BatteryManager;
+import android.os.Handler;
+import android.os.IBinder;
+import android.util.Log;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.params.ConnRoutePNames;
+import org.npr.android.util.PlaylistProvider;
+import org.npr.android.util.PlaylistProvider.Items;
+import org.npr.android.util.PlaylistResolver;
+import org.npr.api.HttpHelper;
+
+import info.guardianproject.onionkit.trust.StrongHttpsClient;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Downloads playlist audio in the background so it can be played without a
+ * network connection. Entries marked DOWNLOAD_QUEUED in the playlist are
+ * fetched a few at a time, only while the configured network and power
+ * constraints hold. Partial files are kept, so an interrupted transfer picks
+ * up where it left off with a ranged request.
+ */
+public class DownloadService extends Service {
+  private static final String LOG_TAG = DownloadService.class.getName();
+
+  private static final String SERVICE_PREFIX = "org.npr.android.news.";
+  public static final String SERVICE_CHECK_QUEUE = SERVICE_PREFIX +
+      "CHECK_DOWNLOADS";
+  // Requeues entries whose downloads failed on transient errors
+  public static final String EXTRA_RETRY_FAILED = SERVICE_PREFIX +
+      "RETRY_FAILED";
+  // Requeues entries that didn't fit in the quota, after some was freed
+  public static final String EXTRA_RETRY_NO_ROOM = SERVICE_PREFIX +
+      "RETRY_NO_ROOM";
+
+  public static final String PREFERENCES = "Downloads";
+  public static final String PREF_WIFI_ONLY = "wifi_only";
+  public static final String PREF_CHARGING_ONLY = "charging_only";
+  public static final String PREF_QUOTA_MB = "quota_mb";
+
+  private static final String DOWNLOAD_DIR = "downloads";
+  private static final String PARTIAL_SUFFIX = ".part";
+
+  private static final int MAX_CONCURRENT_DOWNLOADS = 2;
+  private static final int MAX_ATTEMPTS = 3;
+  private static final long RETRY_DELAY = 10000;
+  private static final int DEFAULT_QUOTA_MB = 100;
+  // How much to download between progress updates and constraint checks
+  private static final long PROGRESS_INTERVAL = 256 * 1024;
+  // Not among HttpStatus's constants
+  private static final int SC_TOO_MANY_REQUESTS = 429;
+
+  private final Set<Long> activeDownloads = new HashSet<Long>();
+  // The size each running download's partial file may grow to, by entry id.
+  // Guarded by the service, like the rest of the quota accounting.
+  private final Map<Long, Long> reservations = new HashMap<Long, Long>();
+  private final Hashtable<Long, Integer> attempts =
+      new Hashtable<Long, Integer>();
+  private ExecutorService executor;
+  private Handler handler;
+  private volatile boolean isRunning = true;
+  private int lastStartId;
+
+  /**
+   * @return The directory downloaded audio is kept in
+   */
+  public static File getDownloadDir(Context context) {
+    return context.getDir(DOWNLOAD_DIR, Context.MODE_PRIVATE);
+  }
+
+  /**
+   * @return Where the unfinished download of a playlist entry is kept
+   */
+  public static File getPartialFile(Context context, long id) {
+    return new File(getDownloadDir(context), id + PARTIAL_SUFFIX);
+  }
+
+  @Override
+  public void onCreate() {
+    super.onCreate();
+    executor = Executors.newFixedThreadPool(MAX_CONCURRENT_DOWNLOADS);
+    handler = new Handler();
+  }
+
+  @Override
+  public int onStartCommand(Intent intent, int flags, int startId) {
+    lastStartId = startId;
+    if (intent != null && intent.getBooleanExtra(EXTRA_RETRY_FAILED, false)) {
+      attempts.clear();
+      requeue(Items.DOWNLOAD_FAILED);
+    }
+    if (intent != null && intent.getBooleanExtra(EXTRA_RETRY_NO_ROOM, false)) {
+      requeue(Items.DOWNLOAD_NO_ROOM);
+    }
+    checkQueue();
+    return START_NOT_STICKY;
+  }
+
+  private void requeue(int state) {
+    ContentValues values = new ContentValues();
+    values.put(Items.DOWNLOAD_STATE, Items.DOWNLOAD_QUEUED);
+    getContentResolver().update(PlaylistProvider.CONTENT_URI, values,
+        Items.DOWNLOAD_STATE + " = " + state, null);
+  }
+
+  @Override
+  public void onDestroy() {
+    super.onDestroy();
+    isRunning = false;
+    executor.shutdownNow();
+  }
+
+  @Override
+  public IBinder onBind(Intent intent) {
+    return null;
+  }
+
+  /**
+   * Starts as many queued downloads as there are free slots, or stops the
+   * service when there is nothing left it can do.
+   */
+  private void checkQueue() {
+    if (!constraintsMet()) {
+      Log.d(LOG_TAG, "Download constraints not met; waiting");
+      stopIfIdle();
+      return;
+    }
+
+    // Entries left RUNNING were interrupted when the process died, so they
+    // are picked up again along with the queued ones.
+    Cursor c = getContentResolver().query(PlaylistProvider.CONTENT_URI,
+        new String[] {Items._ID, Items.URL},
+        Items.DOWNLOAD_STATE + " in (" + Items.DOWNLOAD_QUEUED + ", " +
+            Items.DOWNLOAD_RUNNING + ")", null, Items.PLAY_ORDER + " asc");
+    if (c != null) {
+      while (activeDownloads.size() < MAX_CONCURRENT_DOWNLOADS &&
+          c.moveToNext()) {
+        long id = c.getLong(0);
+        String url = c.getString(1);
+        if (activeDownloads.contains(id) || url == null) {
+          continue;
+        }
+        activeDownloads.add(id);
+        setState(id, Items.DOWNLOAD_RUNNING);
+        executor.execute(new DownloadTask(id, url));
+      }
+      c.close();
+    }
+    stopIfIdle();
+  }
+
+  private void stopIfIdle() {
+    if (activeDownloads.isEmpty()) {
+      stopSelf(lastStartId);
+    }
+  }
+
+  /**
+   * Called on the main thread when a transfer ends, however it ended.
+   */
+  private void onDownloadFinished(long id, boolean retry) {
+    activeDownloads.remove(id);
+    if (retry) {
+      handler.postDelayed(new Runnable() {
+        @Override
+        public void run() {
+          checkQueue();
+        }
+      }, RETRY_DELAY);
+    } else {
+      checkQueue();
+    }
+  }
+
+  private boolean constraintsMet() {
+    SharedPreferences preferences = getSharedPreferences(PREFERENCES,
+        MODE_PRIVATE);
+    ConnectivityManager connectivity =
+        (ConnectivityManager) getSystemService(CONNECTIVITY_SERVICE);
+    NetworkInfo network = connectivity.getActiveNetworkInfo();
+    if (network == null || !network.isConnected()) {
+      return false;
+    }
+    if (preferences.getBoolean(PREF_WIFI_ONLY, true) &&
+        network.getType() != ConnectivityManager.TYPE_WIFI) {
+      return false;
+    }
+    if (preferences.getBoolean(PREF_CHARGING_ONLY, false)) {
+      Intent battery = registerReceiver(null,
+          new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+      if (battery == null ||
+          battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private long getQuota() {
+    return getSharedPreferences(PREFERENCES, MODE_PRIVATE)
+        .getInt(PREF_QUOTA_MB, DEFAULT_QUOTA_MB) * 1024L * 1024L;
+  }
+
+  /**
+   * Makes room for a download to grow to the given size, deleting finished
+   * downloads of entries that have already been listened to if necessary.
+   * The room is held for the download until releaseSpace, so downloads
+   * running side by side can't each count the same free space as theirs.
+   *
+   * @param kept The number of bytes of the partial file being kept
+   * @param size The size the partial file may grow to
+   * @return true if the download fits in the quota
+   */
+  private synchronized boolean reserveSpace(long id, long kept, long size) {
+    long quota = getQuota();
+    long needed = Math.max(size - kept, 0);
+    long used = getUsedSpace() + getReservedSpace(id);
+    if (used + needed > quota) {
+      Cursor c = getContentResolver().query(PlaylistProvider.CONTENT_URI,
+          new String[] {Items._ID, Items.LOCAL_PATH},
+          Items.IS_READ + " = 1 and " + Items.DOWNLOAD_STATE + " = " +
+              Items.DOWNLOAD_COMPLETE, null, Items.PLAY_ORDER + " asc");
+      if (c != null) {
+        while (used + needed > quota && c.moveToNext()) {
+          File file = new File(c.getString(1));
+          used -= file.length();
+          Log.d(LOG_TAG, "Evicting download " + file.getName());
+          file.delete();
+          ContentValues values = new ContentValues();
+          values.put(Items.DOWNLOAD_STATE, Items.DOWNLOAD_NONE);
+          values.putNull(Items.LOCAL_PATH);
+          values.put(Items.DOWNLOADED_BYTES, 0);
+          getContentResolver().update(ContentUris.withAppendedId(
+              PlaylistProvider.CONTENT_URI, c.getLong(0)), values, null,
+              null);
+        }
+        c.close();
+      }
+    }
+    if (used + needed > quota) {
+      reservations.remove(id);
+      return false;
+    }
+    reservations.put(id, size);
+    return true;
+  }
+
+  private synchronized void releaseSpace(long id) {
+    reservations.remove(id);
+  }
+
+  /**
+   * @return The space held for running downloads beyond what their partial
+   * files already take up, leaving out the given entry's
+   */
+  private long getReservedSpace(long exceptId) {
+    long reserved = 0;
+    for (Map.Entry<Long, Long> reservation : reservations.entrySet()) {
+      if (reservation.getKey() != exceptId) {
+        long written = getPartialFile(this, reservation.getKey()).length();
+        reserved += Math.max(reservation.getValue() - written, 0);
+      }
+    }
+    return reserved;
+  }
+
+  private long getUsedSpace() {
+    long used = 0;
+    File[] files = getDownloadDir(this).listFiles();
+    if (files != null) {
+      for (File file : files) {
+        used += file.length();
+      }
+    }
+    return used;
+  }
+
+  private void setState(long id, int state) {
+    ContentValues values = new ContentValues();
+    values.put(Items.DOWNLOAD_STATE, state);
+    update(id, values);
+  }
+
+  /**
+   * @return false if the entry no longer exists
+   */
+  private boolean update(long id, ContentValues values) {
+    Uri uri = ContentUris.withAppendedId(PlaylistProvider.CONTENT_URI, id);
+    return getContentResolver().update(uri, values, null, null) > 0;
+  }
+
+  /**
+   * @return The URL of the audio an entry's URL leads to. Stories often give
+   * a .m3u or .pls playlist, which is resolved to the first URL it lists;
+   * saving the playlist itself would leave nothing playable offline.
+   * @throws IOException If the playlist lists no audio
+   */
+  static String getMediaUrl(String url, PlaylistResolver resolver)
+      throws IOException {
+    if (!PlaylistResolver.isPlaylist(url)) {
+      return url;
+    }
+    List<String> urls = resolver.resolve(url);
+    if (urls.isEmpty() || PlaylistResolver.isPlaylist(urls.get(0))) {
+      throw new RefusedException("No audio in playlist " + url);
+    }
+    return urls.get(0);
+  }
+
+  /**
+   * A download that won't succeed however often it is tried, such as one
+   * the server answers with 404.
+   */
+  private static class RefusedException extends IOException {
+    private RefusedException(String message) {
+      super(message);
+    }
+  }
+
+  /**
+   * @return true for client errors other than those that ask for the
+   * request to be made again later
+   */
+  private static boolean isRefusal(int status) {
+    return status >= 400 && status < 500 &&
+        status != HttpStatus.SC_REQUEST_TIMEOUT &&
+        status != SC_TOO_MANY_REQUESTS;
+  }
+
+  private class DownloadTask implements Runnable {
+    private final long id;
+    private final String url;
+    private String mediaUrl;
+
+    private DownloadTask(long id, String url) {
+      this.id = id;
+      this.url = url;
+    }
+
+    @Override
+    public void run() {
+      boolean retry = false;
+      try {
+        download();
+      } catch (RefusedException e) {
+        Log.w(LOG_TAG, "Download of entry " + id + " refused", e);
+        setState(id, Items.DOWNLOAD_REFUSED);
+      } catch (IOException e) {
+        Log.w(LOG_TAG, "Download of entry " + id + " failed", e);
+        Integer count = attempts.get(id);
+        count = count == null ? 1 : count + 1;
+        attempts.put(id, count);
+        retry = count < MAX_ATTEMPTS;
+        setState(id, retry ? Items.DOWNLOAD_QUEUED : Items.DOWNLOAD_FAILED);
+      } finally {
+        releaseSpace(id);
+        final boolean delayed = retry;
+        handler.post(new Runnable() {
+          @Override
+          public void run() {
+            onDownloadFinished(id, delayed);
+          }
+        });
+      }
+    }
+
+    private void download() throws IOException {
+      File partial = getPartialFile(DownloadService.this, id);
+      long offset = partial.length();
+
+      HttpClient http = new StrongHttpsClient(getApplicationContext());
+      if (HttpHelper.proxyHost != null) {
+        http.getParams().setParameter(ConnRoutePNames.DEFAULT_PROXY,
+            new HttpHost(HttpHelper.proxyHost, HttpHelper.proxyPort));
+      }
+      mediaUrl = getMediaUrl(url,
+          new PlaylistResolver(getApplicationContext()));
+      HttpGet method = new HttpGet(mediaUrl);
+      if (offset > 0) {
+        method.addHeader("Range", "bytes=" + offset + "-");
+      }
+
+      try {
+        HttpResponse response = http.execute(method);
+        int status = response.getStatusLine().getStatusCode();
+        HttpEntity entity = response.getEntity();
+        if (status == HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE &&
+            offset > 0) {
+          // We already have every byte.
+          complete(partial, offset);
+          return;
+        }
+        if (status != HttpStatus.SC_OK &&
+            status != HttpStatus.SC_PARTIAL_CONTENT) {
+          if (isRefusal(status)) {
+            throw new RefusedException("Refused with status " + status);
+          }
+          throw new IOException("Unexpected status " + status);
+        }
+        if (status == HttpStatus.SC_OK) {
+          // The server ignored the range; start over.
+          offset = 0;
+        }
+
+        long length = entity.getContentLength();
+        long size = length < 0 ? -1 : offset + length;
+        // Without a length, room is made a progress interval at a time.
+        if (!reserveSpace(id, offset,
+            size < 0 ? offset + PROGRESS_INTERVAL : size)) {
+          Log.w(LOG_TAG, "Not enough download quota for entry " + id);
+          setState(id, Items.DOWNLOAD_NO_ROOM);
+          return;
+        }
+        ContentValues values = new ContentValues();
+        values.put(Items.DOWNLOAD_SIZE, size);
+        if (!update(id, values)) {
+          partial.delete();
+          return;
+        }
+
+        InputStream data = entity.getContent();
+        FileOutputStream out = new FileOutputStream(partial, offset > 0);
+        long received = offset;
+        long nextUpdate = received + PROGRESS_INTERVAL;
+        try {
+          byte[] buff = new byte[16 * 1024];
+          int readBytes;
+          while ((readBytes = data.read(buff)) != -1) {
+            out.write(buff, 0, readBytes);
+            received += readBytes;
+            if (received >= nextUpdate) {
+              nextUpdate = received + PROGRESS_INTERVAL;
+              values = new ContentValues();
+              values.put(Items.DOWNLOADED_BYTES, received);
+              if (!update(id, values)) {
+                // The entry was removed from the playlist.
+                out.close();
+                partial.delete();
+                return;
+              }
+              if (size < 0 &&
+                  !reserveSpace(id, received, received + PROGRESS_INTERVAL)) {
+                Log.w(LOG_TAG, "Download of entry " + id + " outgrew quota");
+                out.close();
+                partial.delete();
+                setState(id, Items.DOWNLOAD_NO_ROOM);
+                return;
+              }
+              if (!isRunning || !constraintsMet()) {
+                // Keep what we have and resume later.
+                setState(id, Items.DOWNLOAD_QUEUED);
+                return;
+              }
+            }
+          }
+        } finally {
+          out.close();
+          data.close();
+        }
+        complete(partial, received);
+      } finally {
+        method.abort();
+        http.getConnectionManager().shutdown();
+      }
+    }
+
+    private void complete(File partial, long size) throws IOException {
+      String name = partial.getName();
+      File file = new File(partial.getParentFile(),
+          name.substring(0, name.length() - PARTIAL_SUFFIX.length()) +
+              getExtension(mediaUrl));
+      if (!partial.renameTo(file)) {
+        throw new IOException("Unable to rename " + partial);
+      }
+      ContentValues values = new ContentValues();
+      values.put(Items.DOWNLOAD_STATE, Items.DOWNLOAD_COMPLETE);
+      values.put(Items.LOCAL_PATH, file.getAbsolutePath());
+      values.put(Items.DOWNLOADED_BYTES, size);
+      values.put(Items.DOWNLOAD_SIZE, size);
+      if (!update(id, values)) {
+        file.delete();
+      }
+      Log.d(LOG_TAG, "Downloaded entry " + id + " (" + size + " bytes)");
+    }
+  }
+
+  private static String getExtension(String url) {
+    String path = Uri.parse(url).getPath();
+    if (path != null) {
+      int dot = path.lastIndexOf('.');
+      if (dot > path.lastIndexOf('/') && path.length() - dot <= 5) {
+        return path.substring(dot);
+      }
+    }
+    return "";
+  }
+}
@@ -14,6 +14,7 @@
 
 package org.npr.android.news;
 
+import android.app.ActivityManager;
 import android.app.Application;
 import android.content.Context;
 import android.location.Location;
@@ -22,6 +23,7 @@ import android.location.LocationManager;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.os.Process;
 import android.util.Log;
 
 import org.npr.android.util.FileUtils;
@@ -38,6 +40,8 @@ public class NewsApplication extends Application {
   private static final String LOG_TAG = NewsApplication.class.getName();
 
   private static final int MSG_CANCEL_LOCATION_LISTENERS = 2;
+  // Suffix of the name of the process PlaybackService runs in
+  private static final String PLAYBACK_PROCESS_SUFFIX = ":playback";
   private final Handler handler = new Handler() {
     @Override
     public void handleMessage(Message msg) {
@@ -58,7 +62,11 @@ public class NewsApplication extends Application {
   public void onCreate() {
     super.onCreate();
 
-    launchLocationListeners();
+    // The playback process never looks up local stations, and shouldn't be
+    // kept busy with location updates.
+    if (!isPlaybackProcess()) {
+      launchLocationListeners();
+    }
 
     String key = "";
     try {
@@ -77,6 +85,22 @@ public class NewsApplication extends Application {
   }
 
 
+  private boolean isPlaybackProcess() {
+    ActivityManager am =
+        (ActivityManager) getSystemService(Context.ACTIVITY_SERVICE);
+    List<ActivityManager.RunningAppProcessInfo> processes =
+        am.getRunningAppProcesses();
+    if (processes != null) {
+      int pid = Process.myPid();
+      for (ActivityManager.RunningAppProcessInfo process : processes) {
+        if (process.pid == pid) {
+          return process.processName.endsWith(PLAYBACK_PROCESS_SUFFIX);
+        }
+      }
+    }
+    return false;
+  }
+
   /**
    * On start up, launch a location listener for each service. We need to do
    * this in order to ensure that getLastKnownLocation, used to find local
@@ -15,10 +15,9 @@
 
 package org.npr.android.news;
 
-import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
+import android.database.ContentObserver;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
@@ -64,7 +63,7 @@ public class NewsListActivity extends TitleActivity implements
   // Need to store this from the long-press event to ignore the click event
   private int lastLongPressPosition = -1;
 
-  private BroadcastReceiver playlistChangedReceiver;
+  private ContentObserver playlistObserver;
 
 
   // Message handler to communicate between the gestures and the activity
@@ -99,8 +98,8 @@ public class NewsListActivity extends TitleActivity implements
               PlaylistEntry activeEntry =
                   playlistRepository.getPlaylistItemFromId(getActiveId());
               if (activeEntry != null) {
-                playlistRepository.move(playlistEntry.playOrder,
-                    activeEntry.playOrder + 1);
+                playlistRepository.moveAfter(playlistEntry.id,
+                    activeEntry.id);
               }
               playEntryNow(playlistEntry);
             }
@@ -233,9 +232,9 @@ public class NewsListActivity extends TitleActivity implements
     };
     listView.setOnTouchListener(gestureListener);
 
-    playlistChangedReceiver = new PlaylistChangedReceiver();
-    registerReceiver(playlistChangedReceiver,
-        new IntentFilter(PlaylistRepository.PLAYLIST_CHANGED));
+    playlistObserver = new PlaylistObserver();
+    getContentResolver().registerContentObserver(PlaylistProvider.CONTENT_URI,
+        true, playlistObserver);
 
     startIndeterminateProgressIndicator();
     addStories();
@@ -273,9 +272,9 @@ public class NewsListActivity extends TitleActivity implements
 
   @Override
   protected void onStop() {
-    if (playlistChangedReceiver != null) {
-      unregisterReceiver(playlistChangedReceiver);
-      playlistChangedReceiver = null;
+    if (playlistObserver != null) {
+      getContentResolver().unregisterContentObserver(playlistObserver);
+      playlistObserver = null;
     }
     handler.removeCallbacks(updateTime);
     super.onStop();
@@ -340,7 +339,7 @@ public class NewsListActivity extends TitleActivity implements
           playlistRepository.getPlaylistItemFromId(getActiveId());
       long playlistId;
       if (activeEntry != null) {
-        playlistId = playlistRepository.insert(story, activeEntry.playOrder + 1);
+        playlistId = playlistRepository.insertAfter(story, activeEntry.id);
       } else {
         playlistId = playlistRepository.add(story);
       }
@@ -564,16 +563,15 @@ public class NewsListActivity extends TitleActivity implements
     }
   };
 
-  private class PlaylistChangedReceiver extends BroadcastReceiver {
+  // Redraws the in-playlist marks on the stories.
+  private class PlaylistObserver extends ContentObserver {
+    PlaylistObserver() {
+      super(new Handler());
+    }
+
     @Override
-    public void onReceive(Context context, Intent intent) {
-      String operation = intent.getStringExtra(PlaylistRepository
-          .PLAYLIST_CHANGE);
-      if (operation != null &&
-          (operation.equals(PlaylistRepository.PLAYLIST_ITEM_REMOVED) ||
-              operation.equals(PlaylistRepository.PLAYLIST_CLEAR))) {
-        listAdapter.notifyDataSetChanged();
-      }
+    public void onChange(boolean selfChange) {
+      listAdapter.notifyDataSetChanged();
     }
   }
 }
@@ -20,9 +20,11 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.pm.PackageManager;
+import android.database.ContentObserver;
 import android.graphics.drawable.Drawable;
 import android.os.Bundle;
 import android.os.Environment;
+import android.os.Handler;
 import android.text.Html;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -35,6 +37,7 @@ import android.widget.TextView;
 
 import org.npr.android.util.DisplayUtils;
 import org.npr.android.util.PlaylistEntry;
+import org.npr.android.util.PlaylistProvider;
 import org.npr.android.util.PlaylistRepository;
 import org.npr.android.widget.WorkspaceView;
 import org.npr.api.Book;
@@ -75,7 +78,7 @@ public class NewsStoryActivity extends RootActivity implements
   private List<Story> stories;
   private boolean externalStorageAvailable = false;
   private PlaylistRepository playlistRepository;
-  private BroadcastReceiver playlistChangedReceiver;
+  private ContentObserver playlistObserver;
   private BroadcastReceiver playbackChangedReceiver;
 
   @Override
@@ -145,9 +148,9 @@ public class NewsStoryActivity extends RootActivity implements
       }
     }
 
-    playlistChangedReceiver = new PlaylistChangedReceiver();
-    this.registerReceiver(playlistChangedReceiver,
-        new IntentFilter(PlaylistRepository.PLAYLIST_CHANGED));
+    playlistObserver = new PlaylistObserver();
+    getContentResolver().registerContentObserver(PlaylistProvider.CONTENT_URI,
+        true, playlistObserver);
 
     playbackChangedReceiver = new PlaybackChangedReceiver();
     Intent intent = this.registerReceiver(playbackChangedReceiver,
@@ -161,9 +164,9 @@ public class NewsStoryActivity extends RootActivity implements
 
   @Override
   protected void onStop() {
-    if (playlistChangedReceiver != null) {
-      unregisterReceiver(playlistChangedReceiver);
-      playlistChangedReceiver = null;
+    if (playlistObserver != null) {
+      getContentResolver().unregisterContentObserver(playlistObserver);
+      playlistObserver = null;
     }
     if (playbackChangedReceiver != null) {
       unregisterReceiver(playbackChangedReceiver);
@@ -388,7 +391,7 @@ public class NewsStoryActivity extends RootActivity implements
           playlistRepository.getPlaylistItemFromId(getActiveId());
       long playlistId;
       if (activeEntry != null) {
-        playlistId = playlistRepository.insert(story, activeEntry.playOrder + 1);
+        playlistId = playlistRepository.insertAfter(story, activeEntry.id);
       } else {
         playlistId = playlistRepository.add(story);
       }
@@ -475,9 +478,13 @@ public class NewsStoryActivity extends RootActivity implements
     }
   }
 
-  private class PlaylistChangedReceiver extends BroadcastReceiver {
+  private class PlaylistObserver extends ContentObserver {
+    PlaylistObserver() {
+      super(new Handler());
+    }
+
     @Override
-    public void onReceive(Context context, Intent intent) {
+    public void onChange(boolean selfChange) {
       int len = stories.size();
       for (int i = 0; i < len; i++) {
         View v = workspace.getChildAt(i);
@@ -22,6 +22,9 @@ import org.npr.api.Story;
 import android.os.Parcel;
 import android.os.Parcelable;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class Playable implements Parcelable {
   @SuppressWarnings("unused")
   private static final String LOG_TAG = Playable.class.getName();
@@ -42,6 +45,10 @@ public class Playable implements Parcelable {
   private boolean isStream;
   private String activityName;
   private String activityData;
+  // Other streams with the same programming at different bit rates,
+  // including this one, with their guessed bit rates in kbps (0 if unknown)
+  private String[] alternateUrls;
+  private int[] alternateBitrates;
 
   public static final String PLAYABLE_TYPE = "PLAYABLE_TYPE";
 
@@ -93,6 +100,21 @@ public class Playable implements Parcelable {
     this.activityData = activityData;
   }
 
+  /**
+   * @return true if there are streams at other bit rates to choose from
+   */
+  public boolean hasAlternates() {
+    return alternateUrls != null && alternateUrls.length > 1;
+  }
+
+  public String[] getAlternateUrls() {
+    return alternateUrls;
+  }
+
+  public int[] getAlternateBitrates() {
+    return alternateBitrates;
+  }
+
   @Override
   public int describeContents() {
     return 0;
@@ -106,6 +128,8 @@ public class Playable implements Parcelable {
     out.writeString(Boolean.toString(isStream));
     out.writeString(activityName);
     out.writeString(activityData);
+    out.writeStringArray(alternateUrls);
+    out.writeIntArray(alternateBitrates);
   }
 
   public static final Parcelable.Creator<Playable> CREATOR
@@ -126,6 +150,8 @@ public class Playable implements Parcelable {
     isStream = Boolean.parseBoolean(in.readString());
     activityName = in.readString();
     activityData = in.readString();
+    alternateUrls = in.createStringArray();
+    alternateBitrates = in.createIntArray();
   }
 
   public static class PlayableFactory {
@@ -147,6 +173,48 @@ public class Playable implements Parcelable {
           StationDetailsActivity.class.getName(), stationId);
     }
 
+    /**
+     * Plays the stream, but lets the player switch to another of the
+     * station's streams that differs from it only in bit rate.
+     */
+    public static Playable fromStationStream(String stationId,
+        Station.AudioStream stream, List<Station.AudioStream> streams) {
+      Playable playable = fromStationStream(stationId, stream);
+
+      // The stream passed in may carry a display title in place of the
+      // station's own, so compare using the title from the station.
+      String programming = null;
+      for (Station.AudioStream candidate : streams) {
+        if (candidate.getUrl().equals(stream.getUrl())) {
+          programming = BandwidthEstimator.stripBitrate(candidate.getTitle());
+        }
+      }
+      if (programming == null) {
+        return playable;
+      }
+
+      List<Station.AudioStream> alternates =
+          new ArrayList<Station.AudioStream>();
+      for (Station.AudioStream candidate : streams) {
+        if (programming.equals(
+            BandwidthEstimator.stripBitrate(candidate.getTitle()))) {
+          alternates.add(candidate);
+        }
+      }
+      playable.alternateUrls = new String[alternates.size()];
+      playable.alternateBitrates = new int[alternates.size()];
+      for (int i = 0; i < alternates.size(); i++) {
+        Station.AudioStream alternate = alternates.get(i);
+        playable.alternateUrls[i] = alternate.getUrl();
+        int kbps = BandwidthEstimator.guessBitrate(alternate.getTitle());
+        if (kbps == 0) {
+          kbps = BandwidthEstimator.guessBitrate(alternate.getUrl());
+        }
+        playable.alternateBitrates[i] = kbps;
+      }
+      return playable;
+    }
+
     public static Playable fromStory(Story story) {
       return new Playable(-1, story.getPlayableUrl(), story.getTitle(),
           false, null, null);
@@ -16,25 +16,28 @@
 package org.npr.android.news;
 
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.*;
 import java.util.List;
+import java.util.Random;
 
 import android.os.*;
 import org.npr.android.util.AudioManagerProxy;
-import org.npr.android.util.M3uParser;
-import org.npr.android.util.PlaylistParser;
+import org.npr.android.util.PlaylistModel;
 import org.npr.android.util.PlaylistRepository;
-import org.npr.android.util.PlsParser;
+import org.npr.android.util.PlaylistResolver;
+import org.npr.api.HttpHelper;
 
 import android.app.Notification;
 import android.app.PendingIntent;
 import android.app.Service;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.media.AudioManager;
+import android.net.ConnectivityManager;
 import android.media.MediaPlayer;
 import android.media.MediaPlayer.OnBufferingUpdateListener;
 import android.media.MediaPlayer.OnCompletionListener;
@@ -76,6 +79,13 @@ public class PlaybackService extends Service implements
       "PLAYPREVIOUS";
   public static final String SERVICE_STOP_PLAYBACK = SERVICE_PREFIX + "STOP_PLAYBACK";
   public static final String SERVICE_STATUS = SERVICE_PREFIX + "STATUS";
+  public static final String SERVICE_REPORT_METRICS = SERVICE_PREFIX +
+      "REPORT_METRICS";
+  public static final String SERVICE_METRICS_NAME = SERVICE_PREFIX + "METRICS";
+  public static final String SERVICE_REPORT_TELEMETRY = SERVICE_PREFIX +
+      "REPORT_TELEMETRY";
+  public static final String SERVICE_TELEMETRY_NAME = SERVICE_PREFIX +
+      "TELEMETRY";
   public static final String SERVICE_CLEAR_PLAYER = SERVICE_PREFIX +
       "CLEAR_PLAYER";
 
@@ -86,6 +96,10 @@ public class PlaybackService extends Service implements
   public static final String EXTRA_IS_PLAYING = SERVICE_PREFIX + "IS_PLAYING";
   public static final String EXTRA_IS_PREPARED = SERVICE_PREFIX + "IS_PREPARED";
   public static final String EXTRA_KEEP_AUDIO_FOCUS = SERVICE_PREFIX + "KEEP_AUDIO_FOCUS";
+  public static final String EXTRA_BUFFER_FILL = SERVICE_PREFIX + "BUFFER_FILL";
+  public static final String EXTRA_UNDERRUNS = SERVICE_PREFIX + "UNDERRUNS";
+  public static final String EXTRA_METRICS = SERVICE_PREFIX + "METRICS";
+  public static final String EXTRA_TELEMETRY = SERVICE_PREFIX + "TELEMETRY";
 
   public static final String EXTRA_ERROR = SERVICE_PREFIX + "ERROR";
 
@@ -100,8 +114,52 @@ public class PlaybackService extends Service implements
   private boolean mediaPlayerHasStarted = false;
 
   private StreamProxy proxy;
+  private final StreamRouter streamRouter = new StreamRouter();
+  private PlaybackTelemetry telemetry;
+
+  // Adaptive stream selection. Stalls are counted over a window; too many
+  // and the stream is swapped for a lower bit rate one, which then caps the
+  // bit rate until the user starts something else.
+  private int streamCeiling = 0;
+  private long stallWindowStart;
+  private int stallBaseline;
+  private final Runnable stepDownTask = new Runnable() {
+    @Override
+    public void run() {
+      stepDown();
+    }
+  };
+
+  // Gapless playback. Shortly before the current entry ends, the entry after
+  // it is prepared on a second player (with its own proxy, so its bytes are
+  // already buffering) and swapped in when the current one completes.
+  private MediaPlayer nextPlayer;
+  private StreamProxy nextProxy;
+  private Playable nextPlayable;
+  private boolean isNextPrepared = false;
+  private boolean lookedAhead = false;
   private static final int NOTIFICATION_ID = 1;
   private PlaylistRepository playlist;
+  private PlaylistModel playlistModel;
+  // Drops the prepared next entry if the playlist changes under it.
+  private final PlaylistModel.Listener playlistListener =
+      new PlaylistModel.Listener() {
+        @Override
+        public void onPlaylistChanged(List<PlaylistModel.Change> changes) {
+          for (PlaylistModel.Change change : changes) {
+            if (change.type != PlaylistModel.Change.READ) {
+              serviceHandler.post(checkNextTask);
+              return;
+            }
+          }
+        }
+      };
+  private final Runnable checkNextTask = new Runnable() {
+    @Override
+    public void run() {
+      checkNext();
+    }
+  };
   private int startId;
   private String currentAction;
   private Playable currentPlayable = null;
@@ -109,16 +167,43 @@ public class PlaybackService extends Service implements
 
   // Error handling
   private int errorCount;
-  private int connectionErrorWaitTime;
+  private int connectionAttempts;
+  private final Random random = new Random();
   private int seekToPosition;
 
+  // Resume positions of playlist entries, written behind in batches.
+  // positionId is the entry whose position is being tracked, or -1.
+  private PositionWriter positions;
+  private long positionId = -1;
+  private boolean isSeekingToStart = false;
+  private long lastPositionFlush;
+  private final Runnable flushPositionsTask = new Runnable() {
+    @Override
+    public void run() {
+      positions.flush();
+    }
+  };
+
   private TelephonyManager telephonyManager;
   private PhoneStateListener listener;
   private boolean isPausedInCall = false;
   private Intent lastChangeBroadcast;
   private Intent lastUpdateBroadcast;
   private int lastBufferPercent = 0;
-  private Thread updateProgressThread;
+
+  // Progress is pushed to bound listeners rather than broadcast on a timer.
+  // Ticks run on the main thread, and only while something needs them. The
+  // service runs in its own process, so listeners are remote callbacks.
+  private final IBinder binder = new PlaybackBinder();
+  private final RemoteCallbackList<IProgressListener> progressListeners =
+      new RemoteCallbackList<IProgressListener>();
+  private Handler progressHandler;
+  private final Runnable progressTick = new Runnable() {
+    @Override
+    public void run() {
+      onProgressTick();
+    }
+  };
 
   private AudioManagerProxy audioManagerProxy;
 
@@ -126,10 +211,64 @@ public class PlaybackService extends Service implements
   private final static int RESUME_REWIND_TIME = 3000;
   private final static int ERROR_RETRY_COUNT = 3;
   private final static int RETRY_SLEEP_TIME = 30000;
+  private final static int RETRY_BASE_DELAY = 500;
+  private final static int MIN_TICK_INTERVAL = 100;
+  // Underruns within STALL_WINDOW that make a stream step down
+  private final static int STALLS_BEFORE_STEP_DOWN = 3;
+  private final static int STALL_WINDOW = 60000;
+  private final static int STALL_CHECK_INTERVAL = 5000;
+  // How often the position of a playing entry is written out
+  private final static int POSITION_FLUSH_INTERVAL = 30000;
+  // How long before the end of an entry to start preparing the next one
+  private final static int PREPARE_NEXT_LEAD_TIME = 20000;
+  // Platform version from which one MediaPlayer can be chained onto another
+  private final static int SDK_NEXT_MEDIA_PLAYER = 16;
 
   private Looper serviceLooper;
   private ServiceHandler serviceHandler;
 
+  // Service handler messages. Intents arrive as MSG_INTENT; retries after
+  // connection errors wait in the queue as delayed messages rather than
+  // blocking it, so later intents are handled right away.
+  private static final int MSG_INTENT = 0;
+  private static final int MSG_RETRY_CURRENT = 1;
+  private static final int MSG_RETRY_PLAYLIST_URL = 2;
+
+  private final BroadcastReceiver connectivityReceiver =
+      new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+          if (!intent.getBooleanExtra(
+              ConnectivityManager.EXTRA_NO_CONNECTIVITY, false)) {
+            retryNow();
+          }
+        }
+      };
+
+  /**
+   * Called on binder threads from the UI process.
+   */
+  private class PlaybackBinder extends IPlaybackService.Stub {
+    @Override
+    public void addProgressListener(IProgressListener listener) {
+      progressListeners.register(listener);
+      scheduleProgress();
+    }
+
+    @Override
+    public void removeProgressListener(IProgressListener listener) {
+      progressListeners.unregister(listener);
+      scheduleProgress();
+    }
+
+    @Override
+    public PlaybackStatus getStatus() {
+      PlaybackStatus status = PlaybackService.this.getStatus();
+      return status == null ?
+          new PlaybackStatus(false, false, 0, 0, 0, 0, 0) : status;
+    }
+  }
+
   private final class ServiceHandler extends Handler {
     public ServiceHandler(Looper looper) {
       super(looper);
@@ -137,8 +276,16 @@ public class PlaybackService extends Service implements
 
     @Override
     public void handleMessage(Message msg) {
-      startId = msg.arg1;
-      onHandleIntent((Intent) msg.obj);
+      switch (msg.what) {
+        case MSG_RETRY_CURRENT:
+        case MSG_RETRY_PLAYLIST_URL:
+          onRetry(msg);
+          break;
+        default:
+          startId = msg.arg1;
+          onHandleIntent((Intent) msg.obj);
+          break;
+      }
     }
   }
 
@@ -146,12 +293,17 @@ public class PlaybackService extends Service implements
   @Override
   public void onCreate() {
     super.onCreate();
-    
+
     initMediaPlayer();
+    progressHandler = new Handler();
     
     
     playlist = new PlaylistRepository(getApplicationContext(),
         getContentResolver());
+    playlistModel = PlaylistModel.getInstance(getApplicationContext());
+    playlistModel.addListener(playlistListener);
+    positions = new PositionWriter(playlist);
+    telemetry = new PlaybackTelemetry(getApplicationContext());
 
     audioManagerProxy = new AudioManagerProxy(getApplicationContext());
 
@@ -191,24 +343,30 @@ public class PlaybackService extends Service implements
 
     serviceLooper = thread.getLooper();
     serviceHandler = new ServiceHandler(serviceLooper);
+
+    registerReceiver(connectivityReceiver,
+        new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
   }
   
-  private void initMediaPlayer ()
-  {
-	  mediaPlayer = new MediaPlayer();
-	    mediaPlayer.setOnBufferingUpdateListener(this);
-	    mediaPlayer.setOnCompletionListener(this);
-	    mediaPlayer.setOnErrorListener(this);
-	    mediaPlayer.setOnInfoListener(this);
-	    mediaPlayer.setOnPreparedListener(this);
-	    mediaPlayer.setOnSeekCompleteListener(this);
+  private void initMediaPlayer() {
+    mediaPlayer = createMediaPlayer();
+  }
 
+  private MediaPlayer createMediaPlayer() {
+    MediaPlayer player = new MediaPlayer();
+    player.setOnBufferingUpdateListener(this);
+    player.setOnCompletionListener(this);
+    player.setOnErrorListener(this);
+    player.setOnInfoListener(this);
+    player.setOnPreparedListener(this);
+    player.setOnSeekCompleteListener(this);
+    return player;
   }
 
   @Override
   public int onStartCommand(Intent intent, int flags, int startId) {
     super.onStartCommand(intent, flags, startId);
-    Message message = serviceHandler.obtainMessage();
+    Message message = serviceHandler.obtainMessage(MSG_INTENT);
     message.arg1 = startId;
     message.obj = intent;
     serviceHandler.sendMessage(message);
@@ -222,11 +380,19 @@ public class PlaybackService extends Service implements
     }
     String action = intent.getAction();
     Log.d(LOG_TAG, "Playback service action received: " + action);
+    if (!action.equals(SERVICE_STATUS) &&
+        !action.equals(SERVICE_REPORT_METRICS) &&
+        !action.equals(SERVICE_REPORT_TELEMETRY)) {
+      // Whatever the user asked for supersedes a pending retry.
+      cancelRetry();
+    }
     if (action.equals(SERVICE_PLAY_SINGLE) || action.equals(SERVICE_PLAY_ENTRY)) {
       currentAction = action;
       currentPlayable = intent.getParcelableExtra(Playable.PLAYABLE_TYPE);
       seekToPosition = intent.getIntExtra(EXTRA_SEEK_TO, 0);
-      playCurrent(0, 1);
+      streamCeiling = 0;
+      telemetry.begin(currentPlayable != null && currentPlayable.isStream());
+      playCurrent(0);
     } else if (action.equals(SERVICE_TOGGLE_PLAY)) {
       if (isPlaying()) {
         pause(false);
@@ -262,14 +428,24 @@ public class PlaybackService extends Service implements
       seekTo(intent.getIntExtra(EXTRA_SEEK_TO, 0));
     } else if (action.equals(SERVICE_PLAY_NEXT)) {
       seekToPosition = 0;
+      telemetry.begin(false);
       playNextEntry();
     } else if (action.equals(SERVICE_PLAY_PREVIOUS)) {
       seekToPosition = 0;
+      telemetry.begin(false);
       playPreviousEntry();
     } else if (action.equals(SERVICE_STOP_PLAYBACK)) {
       stopSelfResult(startId);
     } else if (action.equals(SERVICE_STATUS)) {
       updateProgress();
+    } else if (action.equals(SERVICE_REPORT_METRICS)) {
+      Intent metrics = new Intent(SERVICE_METRICS_NAME);
+      // Whether playback goes through Tor is for this app's eyes only.
+      metrics.setPackage(getPackageName());
+      metrics.putExtra(EXTRA_METRICS, ProxyMetrics.getSnapshot());
+      getApplicationContext().sendBroadcast(metrics);
+    } else if (action.equals(SERVICE_REPORT_TELEMETRY)) {
+      telemetry.sendReport(getApplicationContext());
     } else if (action.equals(SERVICE_CLEAR_PLAYER)) {
       if (!isPlaying()) {
         stopSelfResult(startId);
@@ -279,8 +455,7 @@ public class PlaybackService extends Service implements
 
   @Override
   public IBinder onBind(Intent intent) {
-    Log.w(LOG_TAG, "onBind called, but binding no longer supported.");
-    return null;
+    return binder;
   }
 
   private void resumePlaying() {
@@ -288,14 +463,14 @@ public class PlaybackService extends Service implements
       if (isPrepared) {
         play();
       } else {
-        playCurrent(0, 1);
+        telemetry.begin(currentPlayable.isStream());
+        playCurrent(0);
       }
     }
   }
 
-  private boolean playCurrent(int startingErrorCount, int startingWaitTime) {
+  private boolean playCurrent(int startingErrorCount) {
     errorCount = startingErrorCount;
-    connectionErrorWaitTime = startingWaitTime;
     while (errorCount < ERROR_RETRY_COUNT) {
       try {
         if (currentPlayable == null || currentPlayable.getUrl() == null) {
@@ -306,14 +481,20 @@ public class PlaybackService extends Service implements
           return false;
         }
 
-        prepareThenPlay(currentPlayable.getUrl(), currentPlayable.isStream());
+        if (seekToPosition == 0 && isResumable(currentPlayable)) {
+          seekToPosition = positions.get(currentPlayable.getId());
+        }
+        if (currentPlayable.isStream() && currentPlayable.hasAlternates()) {
+          selectStream(currentPlayable);
+        }
+        prepareThenPlay(getPlayUrl(currentPlayable), currentPlayable.isStream());
         return true;
       } catch (UnknownHostException e) {
         Log.w(LOG_TAG, "Unknown host in playCurrent");
-        handleConnectionError();
+        return scheduleRetry(MSG_RETRY_CURRENT);
       } catch (ConnectException e) {
         Log.w(LOG_TAG, "Connect exception in playCurrent");
-        handleConnectionError();
+        return scheduleRetry(MSG_RETRY_CURRENT);
       } catch (IOException e) {
         Log.e(LOG_TAG, "IOException on playlist entry " + currentPlayable.getId(), e);
         incrementErrorCount();
@@ -329,27 +510,28 @@ public class PlaybackService extends Service implements
   private void playNextEntry() {
     do {
       if (currentPlayable != null && currentPlayable.getId() != -1) {
-        currentPlayable = playlist.getNextEntry(currentPlayable.getId());
+        currentPlayable = playlistModel.getNextEntry(currentPlayable.getId());
       } else {
-        currentPlayable = playlist.getFirstUnreadEntry();
+        currentPlayable = playlistModel.getFirstUnreadEntry();
       }
-    } while (currentPlayable != null && !playCurrent(0, 1));
+    } while (currentPlayable != null && !playCurrent(0));
   }
 
   private void playPreviousEntry() {
     do {
       if (currentPlayable != null && currentPlayable.getId() != -1) {
-        currentPlayable = playlist.getPreviousEntry(currentPlayable.getId());
+        currentPlayable =
+            playlistModel.getPreviousEntry(currentPlayable.getId());
       } else {
-        currentPlayable = playlist.getFirstUnreadEntry();
+        currentPlayable = playlistModel.getFirstUnreadEntry();
       }
-    } while (currentPlayable != null && !playCurrent(0, 1));
+    } while (currentPlayable != null && !playCurrent(0));
   }
 
   private void playFirstUnreadEntry() {
     do {
-      currentPlayable = playlist.getFirstUnreadEntry();
-    } while (currentPlayable != null && !playCurrent(0, 1));
+      currentPlayable = playlistModel.getFirstUnreadEntry();
+    } while (currentPlayable != null && !playCurrent(0));
 
     if (currentPlayable == null) {
       stopSelfResult(startId);
@@ -358,16 +540,16 @@ public class PlaybackService extends Service implements
 
   private void finishEntryAndPlayNext() {
     if (currentPlayable != null && currentPlayable.getId() >= 0 && !markedRead) {
-      playlist.markAsRead(currentPlayable.getId());
+      playlistModel.markAsRead(currentPlayable.getId());
     }
 
     do {
       if (currentPlayable == null) {
-        currentPlayable = playlist.getFirstUnreadEntry();
+        currentPlayable = playlistModel.getFirstUnreadEntry();
       } else {
-        currentPlayable = playlist.getNextEntry(currentPlayable.getId());
+        currentPlayable = playlistModel.getNextEntry(currentPlayable.getId());
       }
-    } while (currentPlayable != null && !playCurrent(0, 1));
+    } while (currentPlayable != null && !playCurrent(0));
 
     if (currentPlayable == null) {
       stopSelfResult(startId);
@@ -412,21 +594,31 @@ public class PlaybackService extends Service implements
 
     Log.d(LOG_TAG, "listening to " + url + " stream=" + stream);
     String playUrl = url;
-    // From 2.2 on (SDK ver 8), the local mediaplayer can handle Shoutcast
-    // streams natively. Let's detect that, and not proxy.
-   // if (stream && Build.VERSION.SDK_INT < 8) {
+    boolean isProxied = streamRouter.shouldProxy(url, stream);
+    telemetry.setProxied(isProxied);
+    if (isProxied) {
       if (proxy == null) {
-        proxy = new StreamProxy();
+        proxy = new StreamProxy(getApplicationContext());
         proxy.init();
         proxy.start();
       }
+      proxy.setBufferPolicy(
+          StreamProxy.BufferPolicy.forPlayable(currentPlayable));
       playUrl = String.format("http://127.0.0.1:%d/%s",
           proxy.getPort(), url);
-    //}
+    } else if (proxy != null) {
+      proxy.stop();
+      proxy = null;
+    }
 
     // We only have to mark an item read on playlist items,
     // so set markedRead to false only when a playlist entry
     markedRead = !currentAction.equals(SERVICE_PLAY_ENTRY);
+    lookedAhead = false;
+    stallWindowStart = SystemClock.elapsedRealtime();
+    stallBaseline = 0;
+    positionId = isResumable(currentPlayable) ? currentPlayable.getId() : -1;
+    isSeekingToStart = false;
     synchronized (this) {
       Log.d(LOG_TAG, "reset: " + playUrl);
       if (mediaPlayer != null)
@@ -435,7 +627,7 @@ public class PlaybackService extends Service implements
       {
     	  initMediaPlayer();
       }
-      mediaPlayer.setDataSource(playUrl);
+      setDataSource(mediaPlayer, playUrl);
       mediaPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
       Log.d(LOG_TAG, "Preparing: " + playUrl);
       mediaPlayer.prepareAsync();
@@ -454,9 +646,11 @@ public class PlaybackService extends Service implements
       Log.d(LOG_TAG, "Unable to get audio focus, so stop");
       return;
     }
+    telemetry.mark(PlaybackTelemetry.Phase.FOCUSED);
 
     mediaPlayer.start();
     mediaPlayerHasStarted = true;
+    telemetry.mark(PlaybackTelemetry.Phase.STARTED);
 
     presentPlayingNotification();
 
@@ -469,6 +663,8 @@ public class PlaybackService extends Service implements
     lastChangeBroadcast.putExtra(Playable.PLAYABLE_TYPE, currentPlayable);
     getApplicationContext().sendStickyBroadcast(lastChangeBroadcast);
 
+    updateProgress();
+    scheduleProgress();
   }
   
   private void presentPlayingNotification()
@@ -513,6 +709,9 @@ public class PlaybackService extends Service implements
   synchronized private void pause(boolean maintainFocus) {
     Log.d(LOG_TAG, "pause");
     if (isPrepared) {
+      seekToPosition = mediaPlayer.getCurrentPosition();
+      savePosition(seekToPosition);
+      flushPositions();
       if (currentPlayable != null && currentPlayable.isStream()) {
         isPrepared = false;
         if (proxy != null) {
@@ -530,12 +729,17 @@ public class PlaybackService extends Service implements
     
     stopForeground( true );
 
+    updateProgress();
+    scheduleProgress();
   }
 
   synchronized private void stop() {
     Log.d(LOG_TAG, "stop");
     audioManagerProxy.releaseAudioFocus();
+    releaseNext();
     if (isPrepared) {
+      savePosition(mediaPlayer.getCurrentPosition());
+      flushPositions();
       isPrepared = false;
       if (proxy != null) {
         proxy.stop();
@@ -543,66 +747,61 @@ public class PlaybackService extends Service implements
       }
       mediaPlayer.stop();
     }
+    updateProgress();
+    scheduleProgress();
   }
 
   @Override
   public void onPrepared(MediaPlayer mp) {
+    if (mp != mediaPlayer) {
+      onNextPrepared(mp);
+      return;
+    }
     Log.d(LOG_TAG, "Prepared");
+    telemetry.mark(PlaybackTelemetry.Phase.PREPARED);
     synchronized (this) {
       if (mediaPlayer != null) {
         isPrepared = true;
       }
+      if (proxy != null && proxy.getConnectTime() >= 0) {
+        telemetry.mark(PlaybackTelemetry.Phase.PROXY_CONNECTED,
+            proxy.getConnectTime());
+      }
     }
+    connectionAttempts = 0;
 
     if (seekToPosition > 0) {
       Log.d(LOG_TAG, "Seeking to starting position: " + seekToPosition);
+      isSeekingToStart = true;
       mp.seekTo(seekToPosition);
     } else {
-      startPlaying();
+      play();
     }
   }
 
   @Override
   public void onSeekComplete(MediaPlayer mp) {
     Log.d(LOG_TAG, "Seek complete");
+    isSeekingToStart = false;
     if (seekToPosition > 0) {
       seekToPosition = 0;
-      startPlaying();
+      play();
+    } else {
+      scheduleProgress();
     }
   }
 
-  private void startPlaying() {
-    play();
-    updateProgressThread = new Thread(new Runnable() {
-      public void run() {
-        while (true) {
-          updateProgress();
-          try {
-            Thread.sleep(500);
-          } catch (InterruptedException e) {
-            break;
-          }
-        }
-      }
-    });
-    updateProgressThread.start();
-  }
-
   @Override
   public void onDestroy() {
     super.onDestroy();
     Log.w(LOG_TAG, "Service exiting");
 
     stop();
+    playlistModel.removeListener(playlistListener);
+    telemetry.shutdown();
 
-    if (updateProgressThread != null) {
-      updateProgressThread.interrupt();
-      try {
-        updateProgressThread.join(1000);
-      } catch (InterruptedException e) {
-        Log.e(LOG_TAG, "", e);
-      }
-    }
+    progressHandler.removeCallbacks(progressTick);
+    progressListeners.kill();
 
     synchronized (this) {
       if (mediaPlayer != null) {
@@ -620,7 +819,17 @@ public class PlaybackService extends Service implements
       }
     }
 
-    serviceLooper.quit();
+    // Drop whatever else is queued, but write out positions and read flags
+    // on the service thread before it quits, not here on the main thread.
+    serviceHandler.removeCallbacksAndMessages(null);
+    serviceHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        positions.flush();
+        playlistModel.flush();
+        serviceLooper.quit();
+      }
+    });
     stopForeground( true );
     
     if (lastChangeBroadcast != null) {
@@ -629,53 +838,50 @@ public class PlaybackService extends Service implements
     getApplicationContext().sendBroadcast(new Intent(SERVICE_CLOSE_NAME));
 
     telephonyManager.listen(listener, PhoneStateListener.LISTEN_NONE);
+    unregisterReceiver(connectivityReceiver);
   }
 
   @Override
   public void onBufferingUpdate(MediaPlayer mp, int progress) {
-    if (isPrepared) {
+    if (mp == mediaPlayer) {
+      telemetry.mark(PlaybackTelemetry.Phase.FIRST_BUFFER);
+    }
+    if (isPrepared && mp == mediaPlayer) {
+      // Picked up by the next tick
       lastBufferPercent = progress;
-      updateProgress();
     }
   }
 
   /**
-   * Sends an UPDATE broadcast with the latest info.
+   * Sends an UPDATE broadcast with the latest info. This happens when
+   * playback starts, pauses or stops, and on request; regular progress goes
+   * to bound IProgressListeners instead.
    */
   private void updateProgress() {
+    PlaybackStatus status = getStatus();
 
     // Stop updating after mediaplayer is released
-    if (mediaPlayer == null)
+    if (status == null)
       return;
 
-    if (isPrepared) {
+    if (status.isPrepared) {
 
       if (lastUpdateBroadcast != null) {
         getApplicationContext().removeStickyBroadcast(lastUpdateBroadcast);
         lastUpdateBroadcast = null;
       }
 
-      int duration = mediaPlayer.getDuration();
-      seekToPosition = mediaPlayer.getCurrentPosition();
-      if (!markedRead) {
-        if (seekToPosition > duration / 10) {
-          markedRead = true;
-          if (playlist != null && currentPlayable != null) {
-            playlist.markAsRead(currentPlayable.getId());
-          }
-        }
-      }
-
       Intent tempUpdateBroadcast = new Intent(SERVICE_UPDATE_NAME);
-      tempUpdateBroadcast.putExtra(EXTRA_DURATION, duration);
-      tempUpdateBroadcast.putExtra(EXTRA_DOWNLOADED,
-          (int) ((lastBufferPercent / 100.0) * duration));
-      tempUpdateBroadcast.putExtra(EXTRA_POSITION, seekToPosition);
-      tempUpdateBroadcast.putExtra(EXTRA_IS_PLAYING, mediaPlayer.isPlaying());
-      tempUpdateBroadcast.putExtra(EXTRA_IS_PREPARED, isPrepared);
+      tempUpdateBroadcast.putExtra(EXTRA_DURATION, status.duration);
+      tempUpdateBroadcast.putExtra(EXTRA_DOWNLOADED, status.downloaded);
+      tempUpdateBroadcast.putExtra(EXTRA_BUFFER_FILL, status.bufferFill);
+      tempUpdateBroadcast.putExtra(EXTRA_UNDERRUNS, status.underruns);
+      tempUpdateBroadcast.putExtra(EXTRA_POSITION, status.position);
+      tempUpdateBroadcast.putExtra(EXTRA_IS_PLAYING, status.isPlaying);
+      tempUpdateBroadcast.putExtra(EXTRA_IS_PREPARED, status.isPrepared);
 
       // Update broadcasts while playing are not sticky, due to concurrency
-      // issues.  These fire very often, so this shouldn't be a problem.
+      // issues.
       getApplicationContext().sendBroadcast(tempUpdateBroadcast);
     } else {
       if (lastUpdateBroadcast == null) {
@@ -686,9 +892,230 @@ public class PlaybackService extends Service implements
     }
   }
 
+  /**
+   * @return The current progress, or null once the player has been released
+   */
+  synchronized private PlaybackStatus getStatus() {
+    if (mediaPlayer == null) {
+      return null;
+    }
+    if (!isPrepared) {
+      return new PlaybackStatus(false, false, 0, 0, 0, 0, 0);
+    }
+
+    int duration = mediaPlayer.getDuration();
+    int position = mediaPlayer.getCurrentPosition();
+
+    // Prefer what the proxy actually has in hand over the media player's
+    // own buffering estimate.
+    int downloadedPercent = lastBufferPercent;
+    int bufferFill = 0;
+    int underruns = 0;
+    StreamProxy currentProxy = proxy;
+    if (currentProxy != null) {
+      if (currentProxy.getDownloadedPercent() >= 0) {
+        downloadedPercent = currentProxy.getDownloadedPercent();
+      }
+      bufferFill = currentProxy.getBufferFillPercent();
+      underruns = currentProxy.getUnderrunCount();
+    }
+    return new PlaybackStatus(true, mediaPlayer.isPlaying(), duration,
+        position, (int) ((downloadedPercent / 100.0) * duration), bufferFill,
+        underruns);
+  }
+
+  /**
+   * Runs a progress tick now, replacing any that is pending. Called whenever
+   * the playback state or the set of listeners changes.
+   */
+  private void scheduleProgress() {
+    progressHandler.removeCallbacks(progressTick);
+    progressHandler.post(progressTick);
+  }
+
+  private void onProgressTick() {
+    PlaybackStatus status = getStatus();
+    if (status == null) {
+      return;
+    }
+    if (status.isPlaying) {
+      seekToPosition = status.position;
+      savePosition(status.position);
+      if (SystemClock.elapsedRealtime() - lastPositionFlush >=
+          POSITION_FLUSH_INTERVAL) {
+        flushPositions();
+      }
+      checkMilestones(status);
+      checkStalls(status);
+    }
+    int listeners = progressListeners.beginBroadcast();
+    for (int i = 0; i < listeners; i++) {
+      try {
+        progressListeners.getBroadcastItem(i).onProgress(status);
+      } catch (RemoteException e) {
+        // The list drops listeners whose process has died.
+      }
+    }
+    progressListeners.finishBroadcast();
+    long delay = getTickDelay(status, listeners > 0);
+    if (delay >= 0) {
+      progressHandler.postDelayed(progressTick, delay);
+    }
+  }
+
+  /**
+   * Marks the entry read once a tenth of it has played, and starts
+   * preparing the next entry as the end approaches.
+   */
+  private void checkMilestones(PlaybackStatus status) {
+    if (!markedRead && status.position > status.duration / 10) {
+      markedRead = true;
+      final Playable playable = currentPlayable;
+      if (playlistModel != null && playable != null) {
+        serviceHandler.post(new Runnable() {
+          @Override
+          public void run() {
+            playlistModel.markAsRead(playable.getId());
+          }
+        });
+      }
+    }
+
+    if (!lookedAhead && status.duration > 0 &&
+        status.duration - status.position < PREPARE_NEXT_LEAD_TIME) {
+      lookedAhead = true;
+      serviceHandler.post(new Runnable() {
+        @Override
+        public void run() {
+          prepareNext();
+        }
+      });
+    }
+  }
+
+  /**
+   * @return How long until the next tick is needed, or -1 if none is needed
+   * until the playback state changes
+   */
+  private long getTickDelay(PlaybackStatus status, boolean hasListeners) {
+    if (!status.isPlaying) {
+      return -1;
+    }
+    if (hasListeners) {
+      // Land just after the next whole second so the clock ticks evenly.
+      return Math.max(MIN_TICK_INTERVAL, 1000 - status.position % 1000);
+    }
+
+    // Nobody is watching, so only wake up for the next milestone.
+    long delay = -1;
+    if (!markedRead) {
+      delay = status.duration / 10 - status.position;
+    }
+    if (!lookedAhead && status.duration > 0) {
+      long lookAhead =
+          status.duration - PREPARE_NEXT_LEAD_TIME - status.position;
+      delay = delay < 0 ? lookAhead : Math.min(delay, lookAhead);
+    }
+    if (canStepDown()) {
+      // Keep an eye on underruns while a lower bit rate is on hand.
+      delay = delay < 0 ? STALL_CHECK_INTERVAL :
+          Math.min(delay, STALL_CHECK_INTERVAL);
+    }
+    if (positionId >= 0) {
+      // Wake up now and then to write out the position.
+      delay = delay < 0 ? POSITION_FLUSH_INTERVAL :
+          Math.min(delay, POSITION_FLUSH_INTERVAL);
+    }
+    return delay < 0 ? -1 : Math.max(MIN_TICK_INTERVAL, delay);
+  }
+
+  /**
+   * Points the playable at the best of its alternate streams for the
+   * bandwidth the proxy has been seeing.
+   */
+  private void selectStream(Playable playable) {
+    int choice = BandwidthEstimator.choose(playable.getAlternateUrls(),
+        playable.getAlternateBitrates(), streamCeiling,
+        HttpHelper.proxyHost != null);
+    if (choice >= 0) {
+      playable.setUrl(playable.getAlternateUrls()[choice]);
+    }
+  }
+
+  private boolean canStepDown() {
+    Playable playable = currentPlayable;
+    return playable != null && playable.isStream() &&
+        playable.hasAlternates() &&
+        BandwidthEstimator.stepDown(playable.getAlternateUrls(),
+            playable.getAlternateBitrates(), playable.getUrl()) >= 0;
+  }
+
+  /**
+   * Steps down to a lower bit rate once the proxy has run dry too often,
+   * rather than waiting for the stream to fail outright.
+   */
+  private void checkStalls(PlaybackStatus status) {
+    long now = SystemClock.elapsedRealtime();
+    if (now - stallWindowStart > STALL_WINDOW) {
+      stallWindowStart = now;
+      stallBaseline = status.underruns;
+    } else if (status.underruns - stallBaseline >= STALLS_BEFORE_STEP_DOWN &&
+        canStepDown()) {
+      stallWindowStart = now;
+      stallBaseline = status.underruns;
+      serviceHandler.post(stepDownTask);
+    }
+  }
+
+  private void stepDown() {
+    Playable playable = currentPlayable;
+    if (playable == null || !playable.hasAlternates()) {
+      return;
+    }
+    String[] urls = playable.getAlternateUrls();
+    int[] kbps = playable.getAlternateBitrates();
+    int lower = BandwidthEstimator.stepDown(urls, kbps, playable.getUrl());
+    if (lower < 0) {
+      return;
+    }
+    streamCeiling = BandwidthEstimator.getBitrate(urls[lower], kbps[lower]);
+    Log.w(LOG_TAG, "Repeated stalls; stepping down to " + streamCeiling +
+        " kbps");
+    playable.setUrl(urls[lower]);
+    playCurrent(0);
+  }
+
+  /**
+   * @return true for playlist entries of finite length, the only things
+   * whose position is worth keeping
+   */
+  private boolean isResumable(Playable playable) {
+    return playable != null && playable.getId() >= 0 && !playable.isStream();
+  }
+
+  /**
+   * Notes the position of the tracked entry in memory. It reaches the
+   * database on the next flush.
+   */
+  private void savePosition(int position) {
+    // Until the player reaches the saved position it reports a position
+    // near zero, which must not overwrite it.
+    if (positionId >= 0 && !isSeekingToStart) {
+      positions.put(positionId, position);
+    }
+  }
+
+  private void flushPositions() {
+    lastPositionFlush = SystemClock.elapsedRealtime();
+    serviceHandler.post(flushPositionsTask);
+  }
+
   @Override
   public void onCompletion(MediaPlayer mp) {
     Log.w(LOG_TAG, "onComplete()");
+    if (mp != mediaPlayer) {
+      return;
+    }
 
     synchronized (this) {
       if (!isPrepared) {
@@ -699,38 +1126,57 @@ public class PlaybackService extends Service implements
     }
 
     seekToPosition = 0;
-  
+    if (positionId >= 0) {
+      // Finished entries start from the top next time.
+      positions.put(positionId, 0);
+      positionId = -1;
+      flushPositions();
+    }
+
+    if ((playlistUrls == null || playlistUrls.size() == 0) &&
+        currentAction.equals(SERVICE_PLAY_ENTRY) && promoteNext()) {
+      return;
+    }
+
     // Unfinished playlist
-    if (playlistUrls != null && playlistUrls.size() > 0) {
-      boolean successfulPlay = false;
-      while (!successfulPlay && playlistUrls.size() > 0) {
-        String url = playlistUrls.remove(0);
-        errorCount = 0;
-        while (errorCount < ERROR_RETRY_COUNT) {
-          try {
-            prepareThenPlay(url, currentPlayable.isStream());
-            successfulPlay = true;
-            break;
-          } catch (UnknownHostException e) {
-            Log.w(LOG_TAG, "Unknown host in onCompletion");
-            handleConnectionError();
-          } catch (ConnectException e) {
-            Log.w(LOG_TAG, "Connect exception in onCompletion");
-            handleConnectionError();
-          } catch (IllegalArgumentException e) {
-            Log.e(LOG_TAG, "", e);
-            incrementErrorCount();
-          } catch (IllegalStateException e) {
-            Log.e(LOG_TAG, "", e);
-            incrementErrorCount();
-          } catch (IOException e) {
-            Log.e(LOG_TAG, "", e);
-            incrementErrorCount();
-          }
+    if (playNextPlaylistUrl(0)) {
+      return;
+    }
+
+    postForCurrent(new Runnable() {
+      @Override
+      public void run() {
+        finishPlayable();
+      }
+    });
+  }
+
+  /**
+   * Runs the part of a media player callback that reads the playlist
+   * provider, such as looking up a saved position or a downloaded file, on
+   * the service thread instead of the main one. It is dropped if playback
+   * has moved on by then, as retries are.
+   */
+  private void postForCurrent(final Runnable task) {
+    final Playable playable = currentPlayable;
+    serviceHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        if (currentPlayable == playable) {
+          task.run();
         }
       }
+    });
+  }
+
+  private final Runnable playCurrentTask = new Runnable() {
+    @Override
+    public void run() {
+      playCurrent(errorCount);
     }
+  };
 
+  private void finishPlayable() {
     if (currentAction.equals(SERVICE_PLAY_ENTRY)) {
       finishEntryAndPlayNext();
     } else {
@@ -738,6 +1184,56 @@ public class PlaybackService extends Service implements
     }
   }
 
+  /**
+   * Plays the next of the URLs that a playlist file resolved to.
+   *
+   * @param startingErrorCount Errors already seen on the first URL
+   * @return true if a URL is playing or a retry has been scheduled
+   */
+  private boolean playNextPlaylistUrl(int startingErrorCount) {
+    errorCount = startingErrorCount;
+    while (playlistUrls != null && playlistUrls.size() > 0) {
+      String url = playlistUrls.remove(0);
+      while (errorCount < ERROR_RETRY_COUNT) {
+        try {
+          prepareThenPlay(url, currentPlayable.isStream());
+          return true;
+        } catch (UnknownHostException e) {
+          Log.w(LOG_TAG, "Unknown host in onCompletion");
+          if (retryPlaylistUrl(url)) {
+            return true;
+          }
+          break;
+        } catch (ConnectException e) {
+          Log.w(LOG_TAG, "Connect exception in onCompletion");
+          if (retryPlaylistUrl(url)) {
+            return true;
+          }
+          break;
+        } catch (IllegalArgumentException e) {
+          Log.e(LOG_TAG, "", e);
+          incrementErrorCount();
+        } catch (IllegalStateException e) {
+          Log.e(LOG_TAG, "", e);
+          incrementErrorCount();
+        } catch (IOException e) {
+          Log.e(LOG_TAG, "", e);
+          incrementErrorCount();
+        }
+      }
+      errorCount = 0;
+    }
+    return false;
+  }
+
+  private boolean retryPlaylistUrl(String url) {
+    if (scheduleRetry(MSG_RETRY_PLAYLIST_URL)) {
+      playlistUrls.add(0, url);
+      return true;
+    }
+    return false;
+  }
+
   private void incrementErrorCount() {
     errorCount++;
     Log.e(LOG_TAG, "Media player increment error count:" + errorCount);
@@ -748,9 +1244,20 @@ public class PlaybackService extends Service implements
     }
   }
 
-  private void handleConnectionError() {
-    connectionErrorWaitTime *= 5;
-    if (connectionErrorWaitTime > RETRY_SLEEP_TIME) {
+  /**
+   * Schedules another attempt after a connection failure, backing off
+   * exponentially up to RETRY_SLEEP_TIME with random jitter. The wait is a
+   * delayed message, so the service thread never sleeps; any user action
+   * cancels it and a change in connectivity brings it forward.
+   *
+   * @param what MSG_RETRY_CURRENT or MSG_RETRY_PLAYLIST_URL
+   * @return false if the playable has failed too often to try again
+   */
+  private boolean scheduleRetry(int what) {
+    long delay = Math.min((long) RETRY_BASE_DELAY << Math.min(
+        connectionAttempts, 16), RETRY_SLEEP_TIME);
+    connectionAttempts++;
+    if (delay >= RETRY_SLEEP_TIME) {
       Log.e(LOG_TAG, "Connection failed.  Resetting mediaPlayer" +
           " and trying again in 30 seconds.");
 
@@ -761,22 +1268,79 @@ public class PlaybackService extends Service implements
       // If a stream, increment since it could be bad
       if (currentPlayable.isStream()) {
         errorCount++;
+        if (errorCount >= ERROR_RETRY_COUNT) {
+          return false;
+        }
       }
 
-      connectionErrorWaitTime = RETRY_SLEEP_TIME;
       // Send error notification and keep waiting
-      isPrepared = false;
-      mediaPlayer.reset();
+      synchronized (this) {
+        isPrepared = false;
+        mediaPlayer.reset();
+      }
+    }
+
+    // Jitter keeps many clients from hammering a recovering server in step.
+    delay = delay / 2 + (long) (random.nextDouble() * (delay / 2));
+    Log.w(LOG_TAG, "Connection error. Retrying in " + delay +
+        " milliseconds.");
+    serviceHandler.removeMessages(MSG_RETRY_CURRENT);
+    serviceHandler.removeMessages(MSG_RETRY_PLAYLIST_URL);
+    serviceHandler.sendMessageDelayed(
+        serviceHandler.obtainMessage(what, currentPlayable), delay);
+    return true;
+  }
+
+  private void cancelRetry() {
+    serviceHandler.removeMessages(MSG_RETRY_CURRENT);
+    serviceHandler.removeMessages(MSG_RETRY_PLAYLIST_URL);
+    connectionAttempts = 0;
+  }
+
+  /**
+   * Runs a pending retry right away, since the network it was waiting on
+   * may be back. Called on the main thread.
+   */
+  private void retryNow() {
+    for (int what : new int[] {MSG_RETRY_CURRENT, MSG_RETRY_PLAYLIST_URL}) {
+      if (serviceHandler.hasMessages(what)) {
+        Log.d(LOG_TAG, "Connectivity changed; retrying now");
+        serviceHandler.removeMessages(what);
+        // arg1 tells onRetry to start the backoff over.
+        serviceHandler.sendMessage(
+            serviceHandler.obtainMessage(what, 1, 0, currentPlayable));
+      }
+    }
+  }
+
+  private void onRetry(Message msg) {
+    if (msg.obj != currentPlayable) {
+      // Playback has moved on since this was scheduled.
+      return;
+    }
+    if (msg.arg1 == 1) {
+      connectionAttempts = 0;
+    }
+    boolean playing;
+    if (msg.what == MSG_RETRY_PLAYLIST_URL) {
+      playing = playNextPlaylistUrl(errorCount);
     } else {
-      Log.w(LOG_TAG, "Connection error. Waiting for " +
-          connectionErrorWaitTime + " milliseconds.");
+      playing = playCurrent(errorCount);
+    }
+    if (!playing) {
+      finishPlayable();
     }
-    SystemClock.sleep(connectionErrorWaitTime);
   }
 
   @Override
   public boolean onError(MediaPlayer mp, int what, int extra) {
     Log.w(LOG_TAG, "onError(" + what + ", " + extra + ")");
+    if (mp != mediaPlayer) {
+      // The next entry failed while preparing in the background. Drop it;
+      // it will be retried the usual way when its turn comes.
+      releaseNext();
+      return true;
+    }
     synchronized (this) {
       if (!isPrepared) {
         // This file was not good and MediaPlayer quit
@@ -789,7 +1353,7 @@ public class PlaybackService extends Service implements
 
     incrementErrorCount();
     if (errorCount < ERROR_RETRY_COUNT) {
-      playCurrent(errorCount, 1);
+      postForCurrent(playCurrentTask);
       // Returning true means we handled the error, false causes the
       // onCompletion handler to be called
       return true;
@@ -801,46 +1365,244 @@ public class PlaybackService extends Service implements
   @Override
   public boolean onInfo(MediaPlayer arg0, int arg1, int arg2) {
     Log.w(LOG_TAG, "onInfo(" + arg1 + ", " + arg2 + ")");
+    if (arg0 == mediaPlayer) {
+      if (arg1 == MediaPlayer.MEDIA_INFO_BUFFERING_START) {
+        telemetry.rebufferStarted();
+      } else if (arg1 == MediaPlayer.MEDIA_INFO_BUFFERING_END) {
+        telemetry.rebufferEnded();
+      }
+    }
     return false;
   }
 
+  /**
+   * Prepares the playlist entry after the current one on a second player, so
+   * it can start as soon as the current one completes. Streams never
+   * complete and remote playlists have to be resolved first, so neither is
+   * looked ahead.
+   */
+  private void prepareNext() {
+    Playable playing;
+    synchronized (this) {
+      playing = currentPlayable;
+      if (nextPlayer != null || playing == null || playing.getId() < 0 ||
+          playing.isStream() || !SERVICE_PLAY_ENTRY.equals(currentAction)) {
+        return;
+      }
+    }
+    Playable upcoming = playlistModel.getNextEntry(playing.getId());
+    if (upcoming == null || upcoming.getUrl() == null ||
+        upcoming.isStream() || isPlaylist(upcoming.getUrl())) {
+      return;
+    }
+    if (positions.get(upcoming.getId()) > 0) {
+      // It has to start where it left off, not from the top.
+      return;
+    }
+
+    Log.d(LOG_TAG, "Preparing next entry " + upcoming.getId());
+    String playUrl = getPlayUrl(upcoming);
+    StreamProxy upcomingProxy = null;
+    if (streamRouter.shouldProxy(playUrl, false)) {
+      upcomingProxy = new StreamProxy(getApplicationContext());
+      upcomingProxy.init();
+      upcomingProxy.start();
+      upcomingProxy.setBufferPolicy(
+          StreamProxy.BufferPolicy.forPlayable(upcoming));
+      playUrl = String.format("http://127.0.0.1:%d/%s",
+          upcomingProxy.getPort(), playUrl);
+    }
+
+    MediaPlayer player = createMediaPlayer();
+    try {
+      setDataSource(player, playUrl);
+      player.setAudioStreamType(AudioManager.STREAM_MUSIC);
+    } catch (IOException e) {
+      Log.w(LOG_TAG, "Unable to prepare next entry " + upcoming.getId(), e);
+      player.release();
+      if (upcomingProxy != null) {
+        upcomingProxy.stop();
+      }
+      return;
+    }
+
+    synchronized (this) {
+      if (currentPlayable != playing) {
+        // Playback moved on while we were setting up.
+        player.release();
+        if (upcomingProxy != null) {
+          upcomingProxy.stop();
+        }
+        return;
+      }
+      nextPlayer = player;
+      nextProxy = upcomingProxy;
+      nextPlayable = upcoming;
+      isNextPrepared = false;
+      player.prepareAsync();
+    }
+  }
+
+  synchronized private void onNextPrepared(MediaPlayer mp) {
+    if (mp != nextPlayer) {
+      return;
+    }
+    Log.d(LOG_TAG, "Next entry prepared");
+    isNextPrepared = true;
+    if (Build.VERSION.SDK_INT >= SDK_NEXT_MEDIA_PLAYER && isPrepared) {
+      // Let the platform start the next player the moment this one ends.
+      mediaPlayer.setNextMediaPlayer(nextPlayer);
+    }
+  }
+
+  /**
+   * Makes the prepared next player the current one, provided it still holds
+   * the entry that follows the one that just finished.
+   *
+   * @return true if the next entry is now playing
+   */
+  private boolean promoteNext() {
+    synchronized (this) {
+      if (!isNextPrepared) {
+        releaseNext();
+        return false;
+      }
+    }
+    // Preparing it loaded the playlist, so this doesn't query on the main
+    // thread.
+    Playable upcoming = currentPlayable == null ? null :
+        playlistModel.getNextEntry(currentPlayable.getId());
+    MediaPlayer finished;
+    StreamProxy finishedProxy;
+    synchronized (this) {
+      if (!isNextPrepared || upcoming == null ||
+          upcoming.getId() != nextPlayable.getId()) {
+        releaseNext();
+        return false;
+      }
+      if (currentPlayable.getId() >= 0 && !markedRead) {
+        playlistModel.markAsRead(currentPlayable.getId());
+      }
+      Log.d(LOG_TAG, "Switching to next entry " + nextPlayable.getId());
+      finished = mediaPlayer;
+      finishedProxy = proxy;
+      mediaPlayer = nextPlayer;
+      proxy = nextProxy;
+      currentPlayable = nextPlayable;
+      nextPlayer = null;
+      nextProxy = null;
+      nextPlayable = null;
+      isNextPrepared = false;
+      isPrepared = true;
+      markedRead = false;
+      lookedAhead = false;
+      positionId = currentPlayable.getId();
+      lastBufferPercent = 0;
+    }
+    // On platforms without chaining this starts the next player; otherwise
+    // it is already running and this only refreshes the notification and
+    // change broadcast.
+    play();
+
+    finished.release();
+    if (finishedProxy != null) {
+      finishedProxy.stop();
+    }
+    return true;
+  }
+
+  /**
+   * Releases the prepared next entry unless it still follows the current
+   * one.
+   */
+  private void checkNext() {
+    Playable playing;
+    Playable prepared;
+    synchronized (this) {
+      playing = currentPlayable;
+      prepared = nextPlayable;
+    }
+    if (prepared == null) {
+      return;
+    }
+    Playable upcoming = playing == null ? null :
+        playlistModel.getNextEntry(playing.getId());
+    if (upcoming == null || upcoming.getId() != prepared.getId()) {
+      Log.d(LOG_TAG, "Playlist changed; dropping next entry " +
+          prepared.getId());
+      synchronized (this) {
+        if (nextPlayable == prepared) {
+          releaseNext();
+        }
+      }
+    }
+  }
+
+  /**
+   * Throws away the player prepared for the next entry, if any.
+   */
+  synchronized private void releaseNext() {
+    if (nextPlayer != null) {
+      if (isNextPrepared && isPrepared &&
+          Build.VERSION.SDK_INT >= SDK_NEXT_MEDIA_PLAYER) {
+        mediaPlayer.setNextMediaPlayer(null);
+      }
+      nextPlayer.release();
+      nextPlayer = null;
+    }
+    if (nextProxy != null) {
+      nextProxy.stop();
+      nextProxy = null;
+    }
+    nextPlayable = null;
+    isNextPrepared = false;
+  }
+
+  /**
+   * @return The downloaded copy of a playlist entry if there is one,
+   * otherwise its remote URL
+   */
+  private String getPlayUrl(Playable playable) {
+    if (playable.getId() >= 0) {
+      File file = playlist.getDownloadedFile(playable.getId());
+      // Earlier versions saved the playlist a story linked to rather than
+      // the audio it lists, and that can't be played from a file.
+      if (file != null && !isPlaylist(file.getPath())) {
+        Log.d(LOG_TAG, "Playing downloaded copy of " + playable.getId());
+        return file.getAbsolutePath();
+      }
+    }
+    return playable.getUrl();
+  }
+
+  private void setDataSource(MediaPlayer player, String url)
+      throws IOException {
+    if (url.startsWith("/")) {
+      // Downloads are private to the app, so the media server can't open
+      // them by path; hand it a descriptor instead.
+      FileInputStream in = new FileInputStream(url);
+      try {
+        player.setDataSource(in.getFD());
+      } finally {
+        in.close();
+      }
+    } else {
+      player.setDataSource(url);
+    }
+  }
+
   private boolean isPlaylist(String url) {
-    return url.contains("m3u") || url.contains("pls");
+    return PlaylistResolver.isPlaylist(url);
   }
 
   private class downloadPlaylist extends AsyncTask<String, Void, Boolean> {
     protected Boolean doInBackground(String... urls) {
-      Log.d(LOG_TAG, "downloading " + urls[0]);
+      Log.d(LOG_TAG, "resolving " + urls[0]);
       try {
-        URLConnection cn = new URL(urls[0]).openConnection();
-        cn.connect();
-        InputStream stream = cn.getInputStream();
-        if (stream == null) {
-          Log.e(LOG_TAG, "Unable to create InputStream for url: + url");
-          return false;
-        }
-
-        File downloadingMediaFile = new File(getCacheDir(), "playlist_data");
-        FileOutputStream out = new FileOutputStream(downloadingMediaFile);
-        byte buf[] = new byte[16384];
-        int bytesRead;
-        while ((bytesRead = stream.read(buf)) > 0) {
-          out.write(buf, 0, bytesRead);
-        }
-
-        stream.close();
-        out.close();
-        PlaylistParser parser;
-        if (urls[0].contains("m3u")) {
-          parser = new M3uParser(downloadingMediaFile);
-        } else if (urls[0].contains("pls")) {
-          parser = new PlsParser(downloadingMediaFile);
-        } else {
-          return false;
-        }
-        playlistUrls = parser.getUrls();
+        playlistUrls = new PlaylistResolver(getApplicationContext())
+            .resolve(urls[0]);
       } catch (IOException e) {
-        Log.e(LOG_TAG, "Unable to download playlist from url" + urls[0]);
+        Log.e(LOG_TAG, "Unable to download playlist from url" + urls[0], e);
         return false;
       }
       return true;
@@ -848,16 +1610,17 @@ public class PlaybackService extends Service implements
 
     protected void onPostExecute(Boolean result) {
       if (result && playlistUrls != null && playlistUrls.size() > 0) {
+        telemetry.mark(PlaybackTelemetry.Phase.RESOLVED);
         try {
           prepareThenPlay(playlistUrls.remove(0), currentPlayable.isStream());
         } catch (IOException e) {
           Log.e(LOG_TAG, "IOException on playlist entry " + currentPlayable.getId(), e);
           incrementErrorCount();
-          playCurrent(errorCount, connectionErrorWaitTime);
+          postForCurrent(playCurrentTask);
         }
       } else {
         incrementErrorCount();
-        playCurrent(errorCount, connectionErrorWaitTime);
+        postForCurrent(playCurrentTask);
       }
     }
   }
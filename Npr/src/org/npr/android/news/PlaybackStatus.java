@@ -0,0 +1,75 @@
+// Copyright 2012 NPR
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.npr.android.news;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * A snapshot of the player's progress, handed to listeners bound to the
+ * PlaybackService. Times are in milliseconds.
+ */
+public class PlaybackStatus implements Parcelable {
+  public final boolean isPrepared;
+  public final boolean isPlaying;
+  public final int duration;
+  public final int position;
+  public final int downloaded;
+  public final int bufferFill;
+  public final int underruns;
+
+  public PlaybackStatus(boolean isPrepared, boolean isPlaying, int duration,
+                        int position, int downloaded, int bufferFill,
+                        int underruns) {
+    this.isPrepared = isPrepared;
+    this.isPlaying = isPlaying;
+    this.duration = duration;
+    this.position = position;
+    this.downloaded = downloaded;
+    this.bufferFill = bufferFill;
+    this.underruns = underruns;
+  }
+
+  @Override
+  public int describeContents() {
+    return 0;
+  }
+
+  @Override
+  public void writeToParcel(Parcel out, int flags) {
+    out.writeInt(isPrepared ? 1 : 0);
+    out.writeInt(isPlaying ? 1 : 0);
+    out.writeInt(duration);
+    out.writeInt(position);
+    out.writeInt(downloaded);
+    out.writeInt(bufferFill);
+    out.writeInt(underruns);
+  }
+
+  public static final Parcelable.Creator<PlaybackStatus> CREATOR =
+      new Parcelable.Creator<PlaybackStatus>() {
+        @Override
+        public PlaybackStatus createFromParcel(Parcel in) {
+          return new PlaybackStatus(in.readInt() == 1, in.readInt() == 1,
+              in.readInt(), in.readInt(), in.readInt(), in.readInt(),
+              in.readInt());
+        }
+
+        @Override
+        public PlaybackStatus[] newArray(int size) {
+          return new PlaybackStatus[size];
+        }
+      };
+}
@@ -0,0 +1,240 @@
+// Copyright 2012 NPR
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.npr.android.news;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Timestamps each phase of starting playback, from the intent arriving to
+ * the first buffering update, so a slow start can be pinned on playlist
+ * resolution, the proxy, the media player or audio focus. Rebuffering while
+ * playing is recorded too.
+ *
+ * Records go to a log of at most two files of MAX_LOG_BYTES each on the
+ * device. sendReport() broadcasts the latest of them as CSV:
+ *
+ * <pre>
+ * S,wall time,stream,proxied,resolved,proxy,prepared,focused,started,buffer
+ * R,wall time,rebuffer ms
+ * </pre>
+ *
+ * where the startup phases are milliseconds after the intent, or -1 if the
+ * phase didn't happen.
+ */
+class PlaybackTelemetry {
+  private static final String LOG_TAG = PlaybackTelemetry.class.getName();
+
+  enum Phase {RESOLVED, PROXY_CONNECTED, PREPARED, FOCUSED, STARTED,
+    FIRST_BUFFER}
+
+  private static final String LOG_FILE = "playback_telemetry.log";
+  private static final String OLD_LOG_FILE = "playback_telemetry.old.log";
+  private static final int MAX_LOG_BYTES = 64 * 1024;
+  // Keeps the report well inside what a broadcast can carry
+  private static final int MAX_REPORT_CHARS = 16 * 1024;
+  private static final String REPORT_HEADER =
+      "type,wall_time,stream,proxied,resolved,proxy,prepared,focused," +
+      "started,buffer";
+
+  private final File logFile;
+  private final File oldLogFile;
+  // File writes happen off the threads that report events.
+  private final ExecutorService writer = Executors.newSingleThreadExecutor();
+
+  private final long[] phaseTimes = new long[Phase.values().length];
+  private long intentTime = -1;
+  private long intentWallTime;
+  private boolean isStream;
+  private boolean isProxied;
+  private long rebufferStart = -1;
+
+  PlaybackTelemetry(Context context) {
+    logFile = new File(context.getFilesDir(), LOG_FILE);
+    oldLogFile = new File(context.getFilesDir(), OLD_LOG_FILE);
+  }
+
+  /**
+   * Starts timing a new startup, writing out the one before it.
+   */
+  synchronized void begin(boolean isStream) {
+    finish();
+    intentTime = SystemClock.elapsedRealtime();
+    intentWallTime = System.currentTimeMillis();
+    this.isStream = isStream;
+    isProxied = false;
+    rebufferStart = -1;
+    Arrays.fill(phaseTimes, -1);
+  }
+
+  synchronized void setProxied(boolean isProxied) {
+    this.isProxied = isProxied;
+  }
+
+  synchronized void mark(Phase phase) {
+    mark(phase, SystemClock.elapsedRealtime());
+  }
+
+  /**
+   * Records when a phase happened, on the SystemClock.elapsedRealtime()
+   * clock. Only the first time each phase happens is kept.
+   */
+  synchronized void mark(Phase phase, long time) {
+    if (intentTime < 0 || time < intentTime ||
+        phaseTimes[phase.ordinal()] >= 0) {
+      return;
+    }
+    phaseTimes[phase.ordinal()] = time;
+    if (phaseTimes[Phase.STARTED.ordinal()] >= 0 &&
+        phaseTimes[Phase.FIRST_BUFFER.ordinal()] >= 0) {
+      finish();
+    }
+  }
+
+  synchronized void rebufferStarted() {
+    if (rebufferStart < 0) {
+      rebufferStart = SystemClock.elapsedRealtime();
+    }
+  }
+
+  synchronized void rebufferEnded() {
+    if (rebufferStart < 0) {
+      return;
+    }
+    append("R," + System.currentTimeMillis() + "," +
+        (SystemClock.elapsedRealtime() - rebufferStart));
+    rebufferStart = -1;
+  }
+
+  /**
+   * Writes out the startup being timed, if any.
+   */
+  synchronized void finish() {
+    if (intentTime < 0) {
+      return;
+    }
+    StringBuilder line = new StringBuilder("S,");
+    line.append(intentWallTime).append(',')
+        .append(isStream ? 1 : 0).append(',')
+        .append(isProxied ? 1 : 0);
+    for (long time : phaseTimes) {
+      line.append(',').append(time < 0 ? -1 : time - intentTime);
+    }
+    append(line.toString());
+    intentTime = -1;
+  }
+
+  private void append(final String line) {
+    Log.d(LOG_TAG, line);
+    writer.execute(new Runnable() {
+      @Override
+      public void run() {
+        if (logFile.length() > MAX_LOG_BYTES) {
+          oldLogFile.delete();
+          logFile.renameTo(oldLogFile);
+        }
+        FileWriter out = null;
+        try {
+          out = new FileWriter(logFile, true);
+          out.write(line);
+          out.write('\n');
+        } catch (IOException e) {
+          Log.w(LOG_TAG, "Unable to write telemetry", e);
+        } finally {
+          if (out != null) {
+            try {
+              out.close();
+            } catch (IOException e) {
+              Log.w(LOG_TAG, "", e);
+            }
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * Broadcasts the most recent records in the log, oldest first, as CSV with
+   * a header, in the EXTRA_TELEMETRY of a SERVICE_TELEMETRY_NAME intent. The
+   * log is read on the writer thread, behind any writes still queued, so the
+   * report includes them and the caller doesn't wait. Older records are left
+   * out to keep the report under MAX_REPORT_CHARS.
+   */
+  void sendReport(final Context context) {
+    writer.execute(new Runnable() {
+      @Override
+      public void run() {
+        StringBuilder records = new StringBuilder();
+        readInto(oldLogFile, records);
+        readInto(logFile, records);
+        int excess = records.length() - MAX_REPORT_CHARS;
+        if (excess > 0) {
+          // Drop whole records, so the report still parses.
+          int end = records.indexOf("\n", excess - 1);
+          records.delete(0, end < 0 ? records.length() : end + 1);
+        }
+        Intent report = new Intent(PlaybackService.SERVICE_TELEMETRY_NAME);
+        // When and how often the user listened is nobody else's business.
+        report.setPackage(context.getPackageName());
+        report.putExtra(PlaybackService.EXTRA_TELEMETRY,
+            REPORT_HEADER + "\n" + records);
+        context.sendBroadcast(report);
+      }
+    });
+  }
+
+  private static void readInto(File file, StringBuilder report) {
+    if (!file.exists()) {
+      return;
+    }
+    BufferedReader reader = null;
+    try {
+      reader = new BufferedReader(new FileReader(file), 8192);
+      String line;
+      while ((line = reader.readLine()) != null) {
+        report.append(line).append('\n');
+      }
+    } catch (IOException e) {
+      Log.w(LOG_TAG, "Unable to read " + file, e);
+    } finally {
+      if (reader != null) {
+        try {
+          reader.close();
+        } catch (IOException e) {
+          Log.w(LOG_TAG, "", e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Writes out anything pending and stops the writer thread.
+   */
+  void shutdown() {
+    finish();
+    writer.shutdown();
+  }
+}
@@ -79,12 +79,11 @@ public class PlaylistAdapter extends CursorAdapter {
 
     TextView duration = (TextView) view.findViewById(R.id
       .playlist_item_duration);
-    String seconds = cursor.getString(
-      cursor.getColumnIndex(PlaylistProvider.Items.DURATION));
-    if (seconds != null) {
-      int intSeconds = Integer.parseInt(seconds);
-      duration.setText(String.format("%d min %d sec", intSeconds / 60,
-        intSeconds % 60));
+    int seconds = cursor.getInt(
+      cursor.getColumnIndex(PlaylistProvider.Items.DURATION_SECONDS));
+    if (seconds > 0) {
+      duration.setText(String.format("%d min %d sec", seconds / 60,
+        seconds % 60));
     } else {
       duration.setText("");
     }
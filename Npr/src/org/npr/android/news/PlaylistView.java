@@ -16,16 +16,24 @@
 package org.npr.android.news;
 
 import android.app.Activity;
+import android.content.AsyncQueryHandler;
 import android.content.BroadcastReceiver;
+import android.content.ComponentName;
+import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.graphics.Rect;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.IBinder;
 import android.os.Message;
+import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.*;
@@ -80,6 +88,7 @@ public class PlaylistView extends FrameLayout implements OnClickListener,
   private DragNDropListView listView;
   private Button clearPlayedSegments;
   private Button clearPlaylist;
+  private TextView playlistSummary;
 
   private boolean playEnabled;
   private boolean moveControlsEnabled;
@@ -102,7 +111,49 @@ public class PlaylistView extends FrameLayout implements OnClickListener,
   private BroadcastReceiver updateReceiver;
   private BroadcastReceiver closeReceiver;
   private BroadcastReceiver errorReceiver;
-  private BroadcastReceiver playlistChangedReceiver;
+  private ContentObserver playlistObserver;
+  private PlaylistQueryHandler queryHandler;
+  private static final int QUERY_PLAYLIST = 0;
+  private static final int QUERY_SUMMARY = 1;
+  // The service saves where playback got to this often, so requerying the
+  // time left any sooner while playing would find nothing new.
+  private static final long SUMMARY_REFRESH_INTERVAL = 30000;
+  private long lastSummaryRefresh;
+
+  // Progress comes straight from the bound service while this view is
+  // visible; the update broadcast only marks state changes. The service
+  // lives in its own process, so progress arrives on a binder thread.
+  private IPlaybackService playbackService;
+  private boolean isBound = false;
+  private final IProgressListener progressListener =
+      new IProgressListener.Stub() {
+        @Override
+        public void onProgress(final PlaybackStatus status) {
+          if (status.isPrepared) {
+            post(new Runnable() {
+              @Override
+              public void run() {
+                showProgress(status.duration, status.position,
+                    status.downloaded, status.isPlaying);
+              }
+            });
+          }
+        }
+      };
+  private final ServiceConnection serviceConnection = new ServiceConnection() {
+    @Override
+    public void onServiceConnected(ComponentName name, IBinder binder) {
+      playbackService = IPlaybackService.Stub.asInterface(binder);
+      if (getWindowVisibility() == VISIBLE) {
+        setListening(true);
+      }
+    }
+
+    @Override
+    public void onServiceDisconnected(ComponentName name) {
+      playbackService = null;
+    }
+  };
 
   private GestureDetector gestureDetector;
   private final Handler handler = new Handler() {
@@ -218,6 +269,8 @@ public class PlaylistView extends FrameLayout implements OnClickListener,
     clearPlaylist = (Button) findViewById(R.id.clear_playlist);
     clearPlaylist.setOnClickListener(this);
 
+    playlistSummary = (TextView) findViewById(R.id.playlist_summary);
+
     Cursor cursor = queryPlaylist();
     playlistAdapter = new PlaylistAdapter(context, cursor);
 
@@ -244,9 +297,15 @@ public class PlaylistView extends FrameLayout implements OnClickListener,
     context.registerReceiver(errorReceiver,
         new IntentFilter(PlaybackService.SERVICE_ERROR_NAME));
 
-    playlistChangedReceiver = new PlaylistChangedReceiver();
-    context.registerReceiver(playlistChangedReceiver,
-        new IntentFilter(PlaylistRepository.PLAYLIST_CHANGED));
+    queryHandler = new PlaylistQueryHandler(context.getContentResolver());
+    playlistObserver = new PlaylistObserver();
+    context.getContentResolver().registerContentObserver(
+        PlaylistProvider.CONTENT_URI, true, playlistObserver);
+
+    // Don't create the service just to watch it; the connection completes
+    // whenever playback starts it.
+    isBound = context.bindService(new Intent(context, PlaybackService.class),
+        serviceConnection, 0);
 
     listView = (DragNDropListView) findViewById(R.id.playlist);
     listView.setAdapter(playlistAdapter);
@@ -279,13 +338,104 @@ public class PlaylistView extends FrameLayout implements OnClickListener,
     return cursor;
   }
 
+  /**
+   * Requeries the playlist in the background. Only the latest requery
+   * reaches the list.
+   */
   private void refreshList() {
-    if (playlistAdapter != null) {
-      playlistAdapter.changeCursor( queryPlaylist() );
+    if (playlistAdapter != null && queryHandler != null) {
+      queryHandler.cancelOperation(QUERY_PLAYLIST);
+      queryHandler.startQuery(QUERY_PLAYLIST, null,
+          PlaylistProvider.CONTENT_URI, null, null, null,
+          PlaylistProvider.Items.PLAY_ORDER);
+    }
+  }
+
+  /**
+   * Requeries the playlist's totals in the background, for the summary
+   * under the controls.
+   */
+  private void refreshSummary() {
+    if (queryHandler != null) {
+      lastSummaryRefresh = SystemClock.elapsedRealtime();
+      queryHandler.cancelOperation(QUERY_SUMMARY);
+      queryHandler.startQuery(QUERY_SUMMARY, null,
+          PlaylistProvider.SUMMARY_URI, new String[] {
+              PlaylistProvider.Summary.COUNT,
+              PlaylistProvider.Summary.READ_COUNT,
+              PlaylistProvider.Summary.REMAINING_SECONDS}, null, null, null);
+    }
+  }
+
+  private void showSummary(Cursor cursor) {
+    int count = 0;
+    int readCount = 0;
+    int remainingSeconds = 0;
+    if (cursor.moveToFirst()) {
+      count = cursor.getInt(0);
+      readCount = cursor.getInt(1);
+      remainingSeconds = cursor.getInt(2);
+    }
+    if (count > 0) {
+      clearPlaylist.setEnabled(true);
+      clearPlayedSegments.setEnabled(readCount > 0);
+      // Round up, so a few seconds left doesn't show as nothing
+      playlistSummary.setText(context.getString(R.string.msg_playlist_summary,
+          count, (remainingSeconds + 59) / 60));
+    } else {
+      clearPlaylist.setEnabled(false);
+      clearPlayedSegments.setEnabled(false);
+      playlistSummary.setText("");
+    }
+  }
+
+  private class PlaylistQueryHandler extends AsyncQueryHandler {
+    PlaylistQueryHandler(ContentResolver contentResolver) {
+      super(contentResolver);
+    }
+
+    @Override
+    protected void onQueryComplete(int token, Object cookie, Cursor cursor) {
+      if (token == QUERY_SUMMARY) {
+        if (cursor != null) {
+          showSummary(cursor);
+          cursor.close();
+        }
+        return;
+      }
+      if (playlistAdapter == null) {
+        if (cursor != null) {
+          cursor.close();
+        }
+        return;
+      }
+      playlistAdapter.changeCursor(cursor);
       playlistAdapter.notifyDataSetChanged();
     }
   }
 
+  @Override
+  protected void onWindowVisibilityChanged(int visibility) {
+    super.onWindowVisibilityChanged(visibility);
+    setListening(visibility == VISIBLE);
+  }
+
+  private void setListening(boolean listening) {
+    if (playbackService == null) {
+      return;
+    }
+    try {
+      if (listening) {
+        playbackService.addProgressListener(progressListener);
+      } else {
+        playbackService.removeProgressListener(progressListener);
+      }
+    } catch (RemoteException e) {
+      // The playback process has died; onServiceDisconnected will follow.
+      Log.w(LOG_TAG, "Playback service unavailable", e);
+    }
+  }
+
   @Override
   protected void onDetachedFromWindow() {
     super.onDetachedFromWindow();
@@ -306,9 +456,21 @@ public class PlaylistView extends FrameLayout implements OnClickListener,
       context.unregisterReceiver(errorReceiver);
       errorReceiver = null;
     }
-    if (playlistChangedReceiver != null) {
-      context.unregisterReceiver(playlistChangedReceiver);
-      playlistChangedReceiver = null;
+    if (playlistObserver != null) {
+      context.getContentResolver().unregisterContentObserver(
+          playlistObserver);
+      playlistObserver = null;
+    }
+    if (queryHandler != null) {
+      queryHandler.cancelOperation(QUERY_PLAYLIST);
+      queryHandler.cancelOperation(QUERY_SUMMARY);
+      queryHandler = null;
+    }
+    if (isBound) {
+      setListening(false);
+      playbackService = null;
+      context.unbindService(serviceConnection);
+      isBound = false;
     }
     if (playlistAdapter != null) {
       playlistAdapter.close();
@@ -364,14 +526,7 @@ public class PlaylistView extends FrameLayout implements OnClickListener,
 
 
   private void configurePlayerControls() {
-
-    if (playlist.getItemCount() > 0) {
-      clearPlaylist.setEnabled(true);
-      clearPlayedSegments.setEnabled(playlist.getReadCount() > 0);
-    } else {
-      clearPlaylist.setEnabled(false);
-      clearPlayedSegments.setEnabled(false);
-    }
+    refreshSummary();
 
     String activeId = playlistAdapter.getActiveId();
     if (activeId != null) {
@@ -454,65 +609,76 @@ public class PlaylistView extends FrameLayout implements OnClickListener,
 
       int position = intent.getIntExtra(PlaybackService.EXTRA_POSITION, 0);
       int downloaded = intent.getIntExtra(PlaybackService.EXTRA_DOWNLOADED, 1);
-      Log.v(LOG_TAG, "Playback update; position = " + position + " millsecs; " +
-          "downloaded = " + duration + " millsecs");
       boolean isPlaying = intent.getBooleanExtra(PlaybackService
           .EXTRA_IS_PLAYING, false);
-      if (!changingProgress) {
-        progressBar.setMax(duration);
-        progressBar.setProgress(position);
-      }
-      progressBar.setSecondaryProgress(downloaded);
-
-      // StringBuilder much faster than String.Format
-      StringBuilder length = new StringBuilder(13);
-      length.append(position / 60000);
-      length.append(':');
-      int secs = position / 1000 % 60;
-      if (secs < 10) {
-        length.append('0');
-      }
-      length.append(secs);
-      length.append(" / ");
-      length.append(duration / 60000);
-      length.append(':');
-      secs = duration / 1000 % 60;
-      if (secs < 10) {
-        length.append('0');
-      }
-      length.append(secs);
-      lengthText.setText(length.toString());
-
-      if (position > 0) {
-        // Streams have no 'downloaded' amount
-        if (downloaded == 0 || downloaded >= position) {
-          stopPlaylistSpinners();
-        } else if (isPlaying) {
-          startPlaylistSpinners();
-        }
+      showProgress(duration, position, downloaded, isPlaying);
+    }
+  }
+
+  private void showProgress(int duration, int position, int downloaded,
+                            boolean isPlaying) {
+    Log.v(LOG_TAG, "Playback update; position = " + position + " millsecs; " +
+        "downloaded = " + duration + " millsecs");
+    if (!changingProgress) {
+      progressBar.setMax(duration);
+      progressBar.setProgress(position);
+    }
+    progressBar.setSecondaryProgress(downloaded);
+    // Saved positions don't notify the playlist's observers, so the time
+    // left is brought up to date from here.
+    if (isPlaying && SystemClock.elapsedRealtime() - lastSummaryRefresh >=
+        SUMMARY_REFRESH_INTERVAL) {
+      refreshSummary();
+    }
+
+    // StringBuilder much faster than String.Format
+    StringBuilder length = new StringBuilder(13);
+    length.append(position / 60000);
+    length.append(':');
+    int secs = position / 1000 % 60;
+    if (secs < 10) {
+      length.append('0');
+    }
+    length.append(secs);
+    length.append(" / ");
+    length.append(duration / 60000);
+    length.append(':');
+    secs = duration / 1000 % 60;
+    if (secs < 10) {
+      length.append('0');
+    }
+    length.append(secs);
+    lengthText.setText(length.toString());
+
+    if (position > 0) {
+      // Streams have no 'downloaded' amount
+      if (downloaded == 0 || downloaded >= position) {
+        stopPlaylistSpinners();
+      } else if (isPlaying) {
+        startPlaylistSpinners();
       }
+    }
 
-      if (isPlaying == playPauseShowsPlay) {
-        if (isPlaying) {
-          if (storedPlayable == null || !storedPlayable.isStream()) {
-            playPauseButton.setImageResource(R.drawable.pause_button_normal);
-            playPauseButton.setContentDescription(getResources().getString(R.string.acd_pause_button));
-            contractedPlayButton.setImageResource(R.drawable.pause_button_normal);
-            contractedPlayButton.setContentDescription(getResources().getString(R.string.acd_pause_button));
-          } else {
-            playPauseButton.setImageResource(R.drawable.stop_button_normal);
-            playPauseButton.setContentDescription(getResources().getString(R.string.acd_stop_button));
-            contractedPlayButton.setImageResource(R.drawable.stop_button_normal);
-            contractedPlayButton.setContentDescription(getResources().getString(R.string.acd_stop_button));
-          }
-          playPauseShowsPlay = false;
+    if (isPlaying == playPauseShowsPlay) {
+      if (isPlaying) {
+        if (storedPlayable == null || !storedPlayable.isStream()) {
+          playPauseButton.setImageResource(R.drawable.pause_button_normal);
+          playPauseButton.setContentDescription(getResources().getString(R.string.acd_pause_button));
+          contractedPlayButton.setImageResource(R.drawable.pause_button_normal);
+          contractedPlayButton.setContentDescription(getResources().getString(R.string.acd_pause_button));
         } else {
-          playPauseButton.setImageResource(R.drawable.play_button_normal);
-          playPauseButton.setContentDescription(getResources().getString(R.string.acd_play_button));
-          contractedPlayButton.setImageResource(R.drawable.play_button_normal);
-          contractedPlayButton.setContentDescription(getResources().getString(R.string.acd_play_button));
-          playPauseShowsPlay = true;
+          playPauseButton.setImageResource(R.drawable.stop_button_normal);
+          playPauseButton.setContentDescription(getResources().getString(R.string.acd_stop_button));
+          contractedPlayButton.setImageResource(R.drawable.stop_button_normal);
+          contractedPlayButton.setContentDescription(getResources().getString(R.string.acd_stop_button));
         }
+        playPauseShowsPlay = false;
+      } else {
+        playPauseButton.setImageResource(R.drawable.play_button_normal);
+        playPauseButton.setContentDescription(getResources().getString(R.string.acd_play_button));
+        contractedPlayButton.setImageResource(R.drawable.play_button_normal);
+        contractedPlayButton.setContentDescription(getResources().getString(R.string.acd_play_button));
+        playPauseShowsPlay = true;
       }
     }
   }
@@ -545,9 +711,18 @@ public class PlaylistView extends FrameLayout implements OnClickListener,
     }
   }
 
-  private class PlaylistChangedReceiver extends BroadcastReceiver {
+  /**
+   * Hears about playlist changes from the provider, which gathers bursts of
+   * them into one notification.
+   */
+  private class PlaylistObserver extends ContentObserver {
+    PlaylistObserver() {
+      super(new Handler());
+    }
+
     @Override
-    public void onReceive(Context context, Intent intent) {
+    public void onChange(boolean selfChange) {
+      refreshList();
       configurePlayerControls();
     }
   }
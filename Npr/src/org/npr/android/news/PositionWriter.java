@@ -0,0 +1,76 @@
+// Copyright 2012 NPR
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.npr.android.news;
+
+import android.util.Log;
+
+import org.npr.android.util.PlaylistRepository;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps the playback positions of playlist entries in memory and writes
+ * them to the playlist in batches. Progress ticks only replace the pending
+ * value for their entry, so however often the position changes there is at
+ * most one write per entry per flush.
+ */
+class PositionWriter {
+  private static final String LOG_TAG = PositionWriter.class.getName();
+
+  private final PlaylistRepository playlist;
+  private final Map<Long, Integer> pending = new HashMap<Long, Integer>();
+
+  PositionWriter(PlaylistRepository playlist) {
+    this.playlist = playlist;
+  }
+
+  synchronized void put(long id, int position) {
+    pending.put(id, position);
+  }
+
+  /**
+   * Reads the playlist when nothing is pending for the entry, so like flush
+   * it does database work and must not be called on the main thread.
+   *
+   * @return The entry's position, including one that hasn't been written yet
+   */
+  int get(long id) {
+    synchronized (this) {
+      Integer position = pending.get(id);
+      if (position != null) {
+        return position;
+      }
+    }
+    return playlist.getPosition(id);
+  }
+
+  /**
+   * Writes the pending positions. Does database work, so call it off the
+   * main thread.
+   */
+  void flush() {
+    Map<Long, Integer> batch;
+    synchronized (this) {
+      if (pending.isEmpty()) {
+        return;
+      }
+      batch = new HashMap<Long, Integer>(pending);
+      pending.clear();
+    }
+    Log.d(LOG_TAG, "Saving " + batch.size() + " playback positions");
+    playlist.savePositions(batch);
+  }
+}
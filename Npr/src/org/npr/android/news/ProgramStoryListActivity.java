@@ -24,7 +24,9 @@ import org.npr.android.util.PlaylistRepository;
 import org.npr.api.ApiConstants;
 import org.npr.api.Story;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -80,14 +82,15 @@ public class ProgramStoryListActivity extends NewsListActivity {
         loadAll = false;
         PlaylistRepository playlistRepository =
             new PlaylistRepository(getApplicationContext(), getContentResolver());
+        List<Story> stories = new ArrayList<Story>();
         for (int i = 0; i < listAdapter.getCount(); i++) {
           Story story = listAdapter.getItem(i);
           if (story != null &&
               listAdapter.isPlayable(story)) {
-            playlistRepository.add(story);
-           
+            stories.add(story);
           }
         }
+        playlistRepository.addAll(stories);
       }
     }
   };
@@ -0,0 +1,237 @@
+// Copyright 2012 NPR
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.npr.android.news;
+
+import android.os.Bundle;
+import android.util.Log;
+
+import java.util.Arrays;
+
+/**
+ * Collects throughput and latency numbers for requests served by the
+ * StreamProxy. Each request records a Session when it ends; the sessions are
+ * folded into rolling histograms kept separately for traffic that went
+ * through Tor and traffic that went direct, so the two paths can be compared.
+ */
+public class ProxyMetrics {
+  private static final String LOG_TAG = ProxyMetrics.class.getName();
+
+  public static final String ROUTE_TOR = "tor";
+  public static final String ROUTE_DIRECT = "direct";
+
+  // From the request to the upstream response's headers, including any
+  // proxy connection and Tor circuit setup
+  public static final String RESPONSE_MILLIS = "response_ms";
+  public static final String FIRST_BYTE_MILLIS = "first_byte_ms";
+  public static final String BYTES_RELAYED = "bytes_relayed";
+  public static final String THROUGHPUT = "throughput_bps";
+  public static final String STALL_COUNT = "stall_count";
+  public static final String STALL_MILLIS = "stall_ms";
+  public static final String RECONNECTS = "reconnects";
+
+  public static final String KEY_COUNT = "count";
+  public static final String KEY_P50 = "p50";
+  public static final String KEY_P90 = "p90";
+  public static final String KEY_MAX = "max";
+  public static final String KEY_BOUNDS = "bounds";
+  public static final String KEY_BUCKETS = "buckets";
+
+  private static final int WINDOW_SIZE = 100;
+
+  private static final ProxyMetrics torMetrics = new ProxyMetrics();
+  private static final ProxyMetrics directMetrics = new ProxyMetrics();
+
+  /**
+   * Timing and volume of a single proxied request.
+   */
+  public static class Session {
+    public final boolean viaTor;
+    private final long startTime = System.currentTimeMillis();
+    private long responseMillis = -1;
+    private long firstByteTime = -1;
+    private long bytesReceived = 0;
+    private long receiveMillis = 0;
+    private long bytesRelayed = 0;
+    private int stallCount = 0;
+    private long stallMillis = 0;
+    private int reconnects = 0;
+
+    public Session(boolean viaTor) {
+      this.viaTor = viaTor;
+    }
+
+    void responded() {
+      responseMillis = System.currentTimeMillis() - startTime;
+    }
+
+    /**
+     * @param waitMillis How long the read waited on upstream. Time spent
+     *                   blocked on a full buffer is left out, since it
+     *                   follows the player rather than the network.
+     */
+    synchronized void received(int bytes, long waitMillis) {
+      if (firstByteTime < 0) {
+        firstByteTime = System.currentTimeMillis();
+      }
+      bytesReceived += bytes;
+      receiveMillis += waitMillis;
+    }
+
+    void relayed(int bytes) {
+      bytesRelayed += bytes;
+    }
+
+    void finish(int stallCount, long stallMillis, int reconnects) {
+      this.stallCount = stallCount;
+      this.stallMillis = stallMillis;
+      this.reconnects = reconnects;
+    }
+
+    /**
+     * @return Bytes per second received over the time spent waiting on
+     * upstream, or -1 if there wasn't enough data to tell
+     */
+    synchronized long getThroughput() {
+      if (receiveMillis <= 0) {
+        return -1;
+      }
+      return bytesReceived * 1000 / receiveMillis;
+    }
+
+    synchronized long getFirstByteMillis() {
+      return firstByteTime < 0 ? -1 : firstByteTime - startTime;
+    }
+
+    @Override
+    public String toString() {
+      return "response=" + responseMillis + "ms firstByte=" +
+          getFirstByteMillis() + "ms relayed=" + bytesRelayed +
+          " throughput=" + getThroughput() + "B/s stalls=" + stallCount +
+          " (" + stallMillis + "ms) reconnects=" + reconnects +
+          (viaTor ? " via Tor" : " direct");
+    }
+  }
+
+  /**
+   * A histogram over the most recent samples. Old samples fall out of the
+   * window as new ones arrive, so the numbers track current conditions.
+   */
+  static class RollingHistogram {
+    private final long[] bounds;
+    private final long[] samples = new long[WINDOW_SIZE];
+    private int next = 0;
+    private int count = 0;
+
+    /**
+     * @param bounds Upper bounds of each bucket, in ascending order. Values
+     *               above the last bound go in an overflow bucket.
+     */
+    RollingHistogram(long... bounds) {
+      this.bounds = bounds;
+    }
+
+    synchronized void add(long value) {
+      samples[next] = value;
+      next = (next + 1) % samples.length;
+      count = Math.min(count + 1, samples.length);
+    }
+
+    synchronized Bundle toBundle() {
+      Bundle bundle = new Bundle();
+      long[] sorted = new long[count];
+      System.arraycopy(samples, 0, sorted, 0, count);
+      Arrays.sort(sorted);
+      long[] buckets = new long[bounds.length + 1];
+      for (long value : sorted) {
+        int bucket = 0;
+        while (bucket < bounds.length && value > bounds[bucket]) {
+          bucket++;
+        }
+        buckets[bucket]++;
+      }
+      bundle.putInt(KEY_COUNT, count);
+      if (count > 0) {
+        bundle.putLong(KEY_P50, sorted[(count - 1) / 2]);
+        bundle.putLong(KEY_P90, sorted[(count - 1) * 9 / 10]);
+        bundle.putLong(KEY_MAX, sorted[count - 1]);
+      }
+      bundle.putLongArray(KEY_BOUNDS, bounds);
+      bundle.putLongArray(KEY_BUCKETS, buckets);
+      return bundle;
+    }
+  }
+
+  private final RollingHistogram responseMillis = new RollingHistogram(
+      100, 250, 500, 1000, 2000, 5000, 10000);
+  private final RollingHistogram firstByteMillis = new RollingHistogram(
+      100, 250, 500, 1000, 2000, 5000, 10000);
+  private final RollingHistogram bytesRelayed = new RollingHistogram(
+      64 * 1024, 256 * 1024, 1024 * 1024, 4 * 1024 * 1024, 16 * 1024 * 1024);
+  private final RollingHistogram throughput = new RollingHistogram(
+      4 * 1024, 8 * 1024, 16 * 1024, 32 * 1024, 64 * 1024, 128 * 1024);
+  private final RollingHistogram stallCount = new RollingHistogram(
+      0, 1, 2, 5, 10);
+  private final RollingHistogram stallMillis = new RollingHistogram(
+      0, 500, 1000, 5000, 10000, 30000);
+  private final RollingHistogram reconnects = new RollingHistogram(
+      0, 1, 2, 5);
+
+  private void add(Session session) {
+    if (session.responseMillis >= 0) {
+      responseMillis.add(session.responseMillis);
+    }
+    if (session.getFirstByteMillis() >= 0) {
+      firstByteMillis.add(session.getFirstByteMillis());
+    }
+    bytesRelayed.add(session.bytesRelayed);
+    if (session.getThroughput() >= 0) {
+      throughput.add(session.getThroughput());
+    }
+    stallCount.add(session.stallCount);
+    stallMillis.add(session.stallMillis);
+    reconnects.add(session.reconnects);
+  }
+
+  private Bundle toBundle() {
+    Bundle bundle = new Bundle();
+    bundle.putBundle(RESPONSE_MILLIS, responseMillis.toBundle());
+    bundle.putBundle(FIRST_BYTE_MILLIS, firstByteMillis.toBundle());
+    bundle.putBundle(BYTES_RELAYED, bytesRelayed.toBundle());
+    bundle.putBundle(THROUGHPUT, throughput.toBundle());
+    bundle.putBundle(STALL_COUNT, stallCount.toBundle());
+    bundle.putBundle(STALL_MILLIS, stallMillis.toBundle());
+    bundle.putBundle(RECONNECTS, reconnects.toBundle());
+    return bundle;
+  }
+
+  /**
+   * Adds a finished session to the histograms for its route.
+   */
+  public static void record(Session session) {
+    Log.d(LOG_TAG, "Proxy session: " + session);
+    (session.viaTor ? torMetrics : directMetrics).add(session);
+  }
+
+  /**
+   * @return A bundle keyed by route, each holding a bundle per metric with
+   * the sample count, p50, p90, max and bucket counts
+   */
+  public static Bundle getSnapshot() {
+    Bundle bundle = new Bundle();
+    bundle.putBundle(ROUTE_TOR, torMetrics.toBundle());
+    bundle.putBundle(ROUTE_DIRECT, directMetrics.toBundle());
+    return bundle;
+  }
+}
@@ -311,7 +311,7 @@ public class StationDetailsActivity extends RootActivity implements
       listAdapter.notifyDataSetChanged();
     } else if (li.isStream()) {
       playSingleNow(Playable.PlayableFactory.fromStationStream(station.getId(),
-          li.stream));
+          li.stream, station.getAudioStreams()));
     } else if (li.isPodcast()) {
       Intent intent = new Intent(this, PodcastActivity.class).putExtra(
           PodcastActivity.EXTRA_PODCAST_TITLE, li.podcast.getTitle()).putExtra(
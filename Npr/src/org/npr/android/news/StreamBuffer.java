@@ -0,0 +1,149 @@
+// Copyright 2012 NPR
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.npr.android.news;
+
+import java.io.IOException;
+
+/**
+ * A bounded ring buffer that sits between the thread reading from the
+ * network and the thread writing to the media player. The writer blocks
+ * when the buffer is full and the reader blocks when it is empty, so the
+ * network side can run ahead of playback by at most the buffer capacity.
+ */
+class StreamBuffer {
+  private final byte[] data;
+  private int readPosition = 0;
+  private int count = 0;
+  private boolean finished = false;
+  private boolean closed = false;
+  private IOException error;
+  private int underrunCount = 0;
+  private long stallMillis = 0;
+
+  StreamBuffer(int capacity) {
+    data = new byte[capacity];
+  }
+
+  /**
+   * Adds bytes to the buffer, blocking while it is full.
+   *
+   * @throws IOException if the reading side has closed the buffer
+   */
+  synchronized void write(byte[] source, int offset, int length)
+      throws IOException, InterruptedException {
+    while (length > 0) {
+      while (count == data.length && !closed) {
+        wait();
+      }
+      if (closed) {
+        throw new IOException("Stream buffer closed by reader");
+      }
+      int writePosition = (readPosition + count) % data.length;
+      int chunk = Math.min(length, Math.min(data.length - count,
+          data.length - writePosition));
+      System.arraycopy(source, offset, data, writePosition, chunk);
+      count += chunk;
+      offset += chunk;
+      length -= chunk;
+      notifyAll();
+    }
+  }
+
+  /**
+   * Marks the end of the upstream data. Any bytes already buffered can still
+   * be read.
+   *
+   * @param error The error that ended the stream, or null for a clean end
+   */
+  synchronized void finish(IOException error) {
+    this.finished = true;
+    this.error = error;
+    notifyAll();
+  }
+
+  /**
+   * Called by the reading side when it no longer wants data. Wakes up and
+   * fails any pending write.
+   */
+  synchronized void close() {
+    closed = true;
+    notifyAll();
+  }
+
+  /**
+   * Blocks until at least threshold bytes are buffered or the upstream data
+   * has ended.
+   */
+  synchronized void awaitFill(int threshold) throws InterruptedException {
+    threshold = Math.min(threshold, data.length);
+    while (count < threshold && !finished && !closed) {
+      wait();
+    }
+  }
+
+  /**
+   * Reads up to length bytes. When the buffer has run dry this counts as an
+   * underrun, and the read waits for resumeThreshold bytes before returning
+   * so the player gets a useful amount of data rather than a trickle.
+   *
+   * @return The number of bytes read, or -1 at the end of the data
+   * @throws IOException if the upstream data ended with an error
+   */
+  synchronized int read(byte[] target, int offset, int length,
+                        int resumeThreshold)
+      throws IOException, InterruptedException {
+    if (count == 0 && !finished && !closed) {
+      underrunCount++;
+      long stallStart = System.currentTimeMillis();
+      awaitFill(resumeThreshold);
+      stallMillis += System.currentTimeMillis() - stallStart;
+    }
+    if (count == 0) {
+      if (error != null) {
+        throw error;
+      }
+      return -1;
+    }
+    int chunk = Math.min(length, Math.min(count, data.length - readPosition));
+    System.arraycopy(data, readPosition, target, offset, chunk);
+    readPosition = (readPosition + chunk) % data.length;
+    count -= chunk;
+    notifyAll();
+    return chunk;
+  }
+
+  synchronized boolean isClosed() {
+    return closed;
+  }
+
+  synchronized int available() {
+    return count;
+  }
+
+  int capacity() {
+    return data.length;
+  }
+
+  synchronized int getUnderrunCount() {
+    return underrunCount;
+  }
+
+  /**
+   * @return The total time the reader spent waiting after underruns
+   */
+  synchronized long getStallMillis() {
+    return stallMillis;
+  }
+}
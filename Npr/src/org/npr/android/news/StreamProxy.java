@@ -15,6 +15,9 @@
 package org.npr.android.news;
 
 
+import android.content.Context;
+import android.net.Uri;
+import android.os.SystemClock;
 import android.util.Log;
 
 import org.apache.http.Header;
@@ -22,6 +25,8 @@ import org.apache.http.HttpHost;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpResponseFactory;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
 import org.apache.http.ParseException;
 import org.apache.http.ProtocolVersion;
 import org.apache.http.StatusLine;
@@ -29,7 +34,10 @@ import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.conn.ClientConnectionOperator;
+import org.apache.http.conn.ConnectionReleaseTrigger;
 import org.apache.http.conn.OperatedClientConnection;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
 import org.apache.http.conn.params.ConnRoutePNames;
 import org.apache.http.conn.scheme.PlainSocketFactory;
 import org.apache.http.conn.scheme.Scheme;
@@ -38,22 +46,28 @@ import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.impl.conn.DefaultClientConnection;
 import org.apache.http.impl.conn.DefaultClientConnectionOperator;
 import org.apache.http.impl.conn.DefaultResponseParser;
-import org.apache.http.impl.conn.SingleClientConnManager;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
 import org.apache.http.io.HttpMessageParser;
 import org.apache.http.io.SessionInputBuffer;
 import org.apache.http.message.BasicHttpRequest;
 import org.apache.http.message.BasicHttpResponse;
 import org.apache.http.message.BasicLineParser;
 import org.apache.http.message.ParserCursor;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
 import org.apache.http.protocol.HTTP;
 import org.apache.http.util.CharArrayBuffer;
 
 import info.guardianproject.onionkit.trust.StrongHttpsClient;
 
-import java.io.BufferedInputStream;
+import org.npr.android.util.HlsPlaylist;
+import org.npr.api.HttpHelper;
+
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -62,12 +76,33 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 public class StreamProxy implements Runnable {
   private static final String LOG_TAG = StreamProxy.class.getName();
   
   private int port = 0;
+  private final Context context;
+
+  /**
+   * Creates a proxy that can only relay http, for tests. Streams over https
+   * need a context to get at the app's trust store.
+   */
+  public StreamProxy() {
+    this(null);
+  }
+
+  public StreamProxy(Context context) {
+    this.context = context;
+  }
 
   public int getPort() {
     return port;
@@ -77,10 +112,143 @@ public class StreamProxy implements Runnable {
   private ServerSocket socket;
   private Thread thread;
 
-  private String proxyHost = "localhost";
-  private int proxyPort = 8118;
-  
-  
+  private String proxyHost = HttpHelper.proxyHost;
+  private int proxyPort = HttpHelper.proxyPort;
+
+  private BufferPolicy bufferPolicy = BufferPolicy.ON_DEMAND;
+  private volatile StreamBuffer currentBuffer;
+  private volatile long contentLength = -1;
+  private volatile long bytesDownloaded = 0;
+  private volatile int reconnectCount = 0;
+  private volatile long connectTime = -1;
+
+  // Upstream failure handling. A read that blocks longer than the timeout is
+  // treated as a dropped connection and retried with exponential backoff.
+  private static final int UPSTREAM_CONNECT_TIMEOUT = 15000;
+  private static final int UPSTREAM_READ_TIMEOUT = 20000;
+  private static final int MAX_RECONNECT_ATTEMPTS = 5;
+  private static final long RECONNECT_BASE_DELAY = 500;
+
+  // Throughput is sampled for the BandwidthEstimator once this much time
+  // has been spent reading from upstream
+  private static final long THROUGHPUT_SAMPLE_MILLIS = 5000;
+
+  // Pooled upstream connections, shared by all proxy instances
+  private static final int MAX_UPSTREAM_CONNECTIONS = 6;
+  private static final int MAX_UPSTREAM_CONNECTIONS_PER_ROUTE = 3;
+  private static final long IDLE_CONNECTION_TIMEOUT = 30;
+  private static HttpClient upstreamClient;
+  private static SchemeRegistry upstreamSchemes;
+
+  // HTTP Live Streaming. Segments are fetched whole, a few ahead of the one
+  // being relayed, so the player sees no gap at segment boundaries. Two
+  // parallel fetches plus a playlist reload fit in the per-route pool.
+  private static final int HLS_LOOKAHEAD = 3;
+  private static final int HLS_PARALLEL_FETCHES = 2;
+  private static final int HLS_SEGMENT_ATTEMPTS = 3;
+  // Live playback starts this many segments back from the newest one
+  private static final int HLS_LIVE_START_SEGMENTS = 3;
+
+  /**
+   * Thresholds for the read-ahead buffer between the upstream connection and
+   * the media player. Data is pulled from the network as fast as it arrives
+   * and held in a buffer of at most capacity bytes. Nothing is sent to the
+   * player until startThreshold bytes are ready, and after the buffer runs
+   * dry the player waits for resumeThreshold bytes rather than a trickle.
+   */
+  public static class BufferPolicy {
+    public static final BufferPolicy ON_DEMAND =
+        new BufferPolicy(512 * 1024, 16 * 1024, 32 * 1024);
+    public static final BufferPolicy LIVE_STREAM =
+        new BufferPolicy(256 * 1024, 64 * 1024, 64 * 1024);
+
+    public final int capacity;
+    public final int startThreshold;
+    public final int resumeThreshold;
+
+    public BufferPolicy(int capacity, int startThreshold,
+                        int resumeThreshold) {
+      if (startThreshold > capacity || resumeThreshold > capacity) {
+        throw new IllegalArgumentException(
+            "Buffer thresholds can not exceed the buffer capacity");
+      }
+      this.capacity = capacity;
+      this.startThreshold = startThreshold;
+      this.resumeThreshold = resumeThreshold;
+    }
+
+    public static BufferPolicy forPlayable(Playable playable) {
+      if (playable != null && playable.isStream()) {
+        return LIVE_STREAM;
+      }
+      return ON_DEMAND;
+    }
+  }
+
+  /**
+   * Sets the buffer thresholds used for the next request the proxy serves.
+   */
+  public void setBufferPolicy(BufferPolicy bufferPolicy) {
+    this.bufferPolicy = bufferPolicy;
+  }
+
+  /**
+   * @return The number of bytes read from upstream but not yet sent to the
+   * player, or 0 if nothing is being proxied
+   */
+  public int getBufferedBytes() {
+    StreamBuffer buffer = currentBuffer;
+    return buffer == null ? 0 : buffer.available();
+  }
+
+  /**
+   * @return How full the read-ahead buffer is, from 0 to 100
+   */
+  public int getBufferFillPercent() {
+    StreamBuffer buffer = currentBuffer;
+    if (buffer == null) {
+      return 0;
+    }
+    return (int) (100L * buffer.available() / buffer.capacity());
+  }
+
+  /**
+   * @return The number of times the player drained the buffer while waiting
+   * on the network during the current request
+   */
+  public int getUnderrunCount() {
+    StreamBuffer buffer = currentBuffer;
+    return buffer == null ? 0 : buffer.getUnderrunCount();
+  }
+
+  /**
+   * @return The percentage of the current file that has been read from
+   * upstream, or -1 if the length is not known (as for live streams)
+   */
+  public int getDownloadedPercent() {
+    long length = contentLength;
+    if (length <= 0) {
+      return -1;
+    }
+    return (int) Math.min(100, 100 * bytesDownloaded / length);
+  }
+
+  /**
+   * @return The number of times the upstream connection was re-established
+   * during the current request
+   */
+  public int getReconnectCount() {
+    return reconnectCount;
+  }
+
+  /**
+   * @return When the latest request got its response from upstream, on the
+   * SystemClock.elapsedRealtime() clock, or -1 if none has
+   */
+  public long getConnectTime() {
+    return connectTime;
+  }
+
   public void init() {
     try {
       socket = new ServerSocket(port, 0, InetAddress.getByAddress(new byte[] {127,0,0,1}));
@@ -172,22 +340,28 @@ public class StreamProxy implements Runnable {
   }
 
   private HttpResponse download(String url) {
-	  
-    DefaultHttpClient seed = new DefaultHttpClient();
-    
-    
-    SchemeRegistry registry = new SchemeRegistry();
-    registry.register(
-            new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
-    SingleClientConnManager mgr = new MyClientConnManager(seed.getParams(),
-        registry);
-    
-    DefaultHttpClient http = new DefaultHttpClient(mgr, seed.getParams());
-    if (proxyHost != null)
-    	http.getParams().setParameter(ConnRoutePNames.DEFAULT_PROXY,  new HttpHost(proxyHost, proxyPort));
-    
-    
+    return download(url, 0);
+  }
+
+  /**
+   * @param rangeStart If positive, asks the server to start sending from this
+   *                   byte offset
+   */
+  private HttpResponse download(String url, long rangeStart) {
+    HttpClient http = getUpstreamClient(context);
+    // Drop pooled connections that have sat long enough for the server or
+    // an intermediate proxy to have closed them.
+    http.getConnectionManager().closeIdleConnections(IDLE_CONNECTION_TIMEOUT,
+        TimeUnit.SECONDS);
+
     HttpGet method = new HttpGet(url);
+    if (proxyHost != null) {
+      method.getParams().setParameter(ConnRoutePNames.DEFAULT_PROXY,
+          new HttpHost(proxyHost, proxyPort));
+    }
+    if (rangeStart > 0) {
+      method.addHeader("Range", "bytes=" + rangeStart + "-");
+    }
     HttpResponse response = null;
     try {
       Log.d(LOG_TAG, "starting download");
@@ -201,6 +375,43 @@ public class StreamProxy implements Runnable {
     return response;
   }
 
+  /**
+   * Returns the upstream client shared by every proxy instance. A new proxy is
+   * started for each item played, so keeping the connection pool here lets
+   * consecutive items from the same host reuse a warm connection.
+   *
+   * Https goes through the same socket factory as the StrongHttpsClient used
+   * everywhere else in the app, so it checks the same pinned trust store. It
+   * is registered once a proxy with a context asks for the client.
+   */
+  private static synchronized HttpClient getUpstreamClient(Context context) {
+    if (upstreamClient == null) {
+      HttpParams params = new BasicHttpParams();
+      HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+      HttpConnectionParams.setConnectionTimeout(params,
+          UPSTREAM_CONNECT_TIMEOUT);
+      HttpConnectionParams.setSoTimeout(params, UPSTREAM_READ_TIMEOUT);
+      ConnManagerParams.setMaxTotalConnections(params,
+          MAX_UPSTREAM_CONNECTIONS);
+      ConnManagerParams.setMaxConnectionsPerRoute(params,
+          new ConnPerRouteBean(MAX_UPSTREAM_CONNECTIONS_PER_ROUTE));
+
+      upstreamSchemes = new SchemeRegistry();
+      upstreamSchemes.register(
+          new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+
+      upstreamClient = new DefaultHttpClient(
+          new MyClientConnManager(params, upstreamSchemes), params);
+    }
+    if (context != null && upstreamSchemes.get("https") == null) {
+      HttpClient strong = new StrongHttpsClient(context);
+      upstreamSchemes.register(
+          strong.getConnectionManager().getSchemeRegistry().getScheme("https"));
+      strong.getConnectionManager().shutdown();
+    }
+    return upstreamClient;
+  }
+
   private void processRequest(HttpRequest request, Socket client)
       throws IllegalStateException, IOException {
     if (request == null) {
@@ -208,14 +419,26 @@ public class StreamProxy implements Runnable {
     }
     Log.d(LOG_TAG, "processing");
     String url = request.getRequestLine().getUri();
+    if (HlsPlaylist.isHls(url)) {
+      processHlsRequest(url, client);
+      return;
+    }
+    ProxyMetrics.Session session = new ProxyMetrics.Session(proxyHost != null);
     HttpResponse realResponse = download(url);
     if (realResponse == null) {
       return;
     }
+    session.responded();
+    connectTime = SystemClock.elapsedRealtime();
+    Header bitrate = realResponse.getFirstHeader("icy-br");
+    if (bitrate != null) {
+      BandwidthEstimator.setBitrate(url,
+          BandwidthEstimator.guessBitrate(bitrate.getValue() + "k"));
+    }
 
     Log.d(LOG_TAG, "downloading...");
 
-    BufferedInputStream data = new BufferedInputStream(realResponse.getEntity().getContent());
+    InputStream data = realResponse.getEntity().getContent();
     StatusLine line = realResponse.getStatusLine();
     HttpResponse response = new BasicHttpResponse(line);
     response.setHeaders(realResponse.getAllHeaders());
@@ -232,30 +455,545 @@ public class StreamProxy implements Runnable {
     httpString.append("\n");
     Log.d(LOG_TAG, "headers done");
 
+    BufferPolicy policy = bufferPolicy;
+    StreamBuffer buffer = new StreamBuffer(policy.capacity);
+    long length = realResponse.getEntity().getContentLength();
+    contentLength = length;
+    relay(client, httpString.toString(), policy, buffer,
+        new ReadAhead(url, data, buffer, length, policy, session), session);
+  }
+
+  /**
+   * Serves an HLS playlist as a single stream. The variant with the lowest
+   * bandwidth is picked from a master playlist, since a stall costs more
+   * than the lower bit rate, and its segments are spliced together by an
+   * HlsReadAhead.
+   */
+  private void processHlsRequest(String url, Socket client)
+      throws IOException {
+    ProxyMetrics.Session session = new ProxyMetrics.Session(proxyHost != null);
+    HlsPlaylist playlist;
+    try {
+      playlist = downloadHlsPlaylist(url);
+      if (playlist.isMaster()) {
+        HlsPlaylist.Variant variant = playlist.getLowestVariant();
+        Log.d(LOG_TAG, "Using HLS variant of " + variant.bandwidth + " bps");
+        url = variant.url;
+        playlist = downloadHlsPlaylist(url);
+      }
+      if (playlist.isEncrypted()) {
+        throw new IOException("Encrypted HLS streams are not supported");
+      }
+    } catch (IOException e) {
+      Log.e(LOG_TAG, "Unable to load HLS playlist", e);
+      client.close();
+      return;
+    }
+    session.responded();
+    connectTime = SystemClock.elapsedRealtime();
+
+    String headers = "HTTP/1.1 200 OK\nContent-Type: " +
+        getHlsContentType(playlist) + "\n\n";
+    BufferPolicy policy = bufferPolicy;
+    StreamBuffer buffer = new StreamBuffer(policy.capacity);
+    contentLength = -1;
+    relay(client, headers, policy, buffer,
+        new HlsReadAhead(url, playlist, buffer, session), session);
+  }
+
+  /**
+   * Sends the response headers to the client, then relays the buffer to it
+   * while source fills the buffer on its own thread.
+   */
+  private void relay(Socket client, String headers, BufferPolicy policy,
+                     StreamBuffer buffer, Runnable source,
+                     ProxyMetrics.Session session) throws IOException {
+    bytesDownloaded = 0;
+    reconnectCount = 0;
+    currentBuffer = buffer;
+    Thread readAhead = new Thread(source, "StreamProxy:ReadAhead");
+    readAhead.start();
+
     try {
-      byte[] buffer = httpString.toString().getBytes();
+      byte[] headerBuffer = headers.getBytes();
       int readBytes;
       Log.d(LOG_TAG, "writing to client");      
       
       BufferedOutputStream bos = new BufferedOutputStream(client.getOutputStream());            
-      bos.write(buffer, 0, buffer.length);
+      bos.write(headerBuffer, 0, headerBuffer.length);
+      bos.flush();
 
-      // Start streaming content.
+      // Let the network get ahead of the player before streaming content.
+      buffer.awaitFill(policy.startThreshold);
       byte[] buff = new byte[1024 * 50];
-      while (isRunning && (readBytes = data.read(buff, 0, buff.length)) != -1) {
-    	  bos.write(buff, 0, readBytes);
+      while (isRunning && (readBytes = buffer.read(buff, 0, buff.length,
+          policy.resumeThreshold)) != -1) {
+        bos.write(buff, 0, readBytes);
+        session.relayed(readBytes);
+        if (buffer.available() == 0) {
+          // Hand over what we have before waiting on the network again.
+          bos.flush();
+        }
       }
+      bos.flush();
     } catch (Exception e) {
-      Log.e("", e.getMessage(), e);
+      Log.e(LOG_TAG, "Error relaying to client", e);
     } finally {
-      if (data != null) {
-        data.close();
-      }
+      buffer.close();
+      readAhead.interrupt();
       client.close();
+      session.finish(buffer.getUnderrunCount(), buffer.getStallMillis(),
+          reconnectCount);
+      ProxyMetrics.record(session);
+    }
+  }
+
+  private HlsPlaylist downloadHlsPlaylist(String url) throws IOException {
+    HttpResponse response = download(url);
+    if (response == null) {
+      throw new IOException("Unable to download " + url);
+    }
+    int status = response.getStatusLine().getStatusCode();
+    if (status != HttpStatus.SC_OK) {
+      response.getEntity().consumeContent();
+      throw new IOException("Status " + status + " for " + url);
+    }
+    return new HlsPlaylist(response.getEntity().getContent(), url);
+  }
+
+  private byte[] downloadSegment(String url, ProxyMetrics.Session session)
+      throws IOException {
+    HttpResponse response = download(url);
+    if (response == null) {
+      throw new IOException("Unable to download " + url);
+    }
+    int status = response.getStatusLine().getStatusCode();
+    if (status != HttpStatus.SC_OK) {
+      response.getEntity().consumeContent();
+      throw new IOException("Status " + status + " for " + url);
+    }
+    long length = response.getEntity().getContentLength();
+    ByteArrayOutputStream segment = new ByteArrayOutputStream(
+        length > 0 ? (int) length : 64 * 1024);
+    InputStream data = response.getEntity().getContent();
+    long start = SystemClock.elapsedRealtime();
+    try {
+      byte[] buff = new byte[1024 * 16];
+      int readBytes;
+      long readStart = start;
+      while ((readBytes = data.read(buff, 0, buff.length)) != -1) {
+        long now = SystemClock.elapsedRealtime();
+        segment.write(buff, 0, readBytes);
+        session.received(readBytes, now - readStart);
+        readStart = now;
+      }
+    } finally {
+      data.close();
+    }
+    long elapsed = SystemClock.elapsedRealtime() - start;
+    if (elapsed > 0) {
+      BandwidthEstimator.addSample(session.viaTor,
+          segment.size() * 1000L / elapsed);
+    }
+    return segment.toByteArray();
+  }
+
+  /**
+   * Checks that the response to a request resuming a dropped upstream can
+   * be spliced onto what the player already has. Anything but a success is
+   * refused, as is an HTML page, which is what captive portals and some
+   * servers send with a 200 in place of the stream.
+   *
+   * @param rangeStart The offset the request asked for, or 0 if it asked for
+   * the whole resource, as for live streams
+   * @param expectedLength The length of the whole file, or -1 if unknown
+   * @return true if the server ignored the range and sent the file from the
+   * start, so rangeStart bytes have to be skipped
+   * @throws IOException If the response can't be used
+   */
+  static boolean checkResumeResponse(int status, String contentType,
+                                     long entityLength, long rangeStart,
+                                     long expectedLength) throws IOException {
+    if (status < 200 || status >= 300) {
+      throw new IOException("Status " + status + " on reconnecting");
+    }
+    if (contentType != null &&
+        contentType.toLowerCase().startsWith("text/html")) {
+      throw new IOException("Got " + contentType + " on reconnecting");
+    }
+    if (rangeStart <= 0) {
+      return false;
+    }
+    if (status == HttpStatus.SC_PARTIAL_CONTENT) {
+      return false;
+    }
+    if (status != HttpStatus.SC_OK ||
+        (entityLength > 0 && expectedLength > 0 &&
+            entityLength != expectedLength)) {
+      // Not the file the player has been getting
+      throw new IOException("Status " + status + " with length " +
+          entityLength + " on resuming at " + rangeStart);
+    }
+    return true;
+  }
+
+  /**
+   * Decides whether upstream ending cleanly is the end of what the player
+   * should get. A live stream never ends, so it is reconnected. A file ends
+   * where its body does, unless it falls short of the length the server
+   * announced; without one, as when it is sent chunked, there is nothing to
+   * fall short of.
+   *
+   * @param expectedLength The length of the whole file, or -1 if unknown
+   */
+  static boolean isEndOfStream(boolean isLive, long received,
+                               long expectedLength) {
+    if (isLive) {
+      return false;
+    }
+    return expectedLength <= 0 || received >= expectedLength;
+  }
+
+  private static String getHlsContentType(HlsPlaylist playlist) {
+    List<String> segments = playlist.getSegments();
+    String path = segments.isEmpty() ? null :
+        Uri.parse(segments.get(0)).getPath();
+    if (path != null) {
+      path = path.toLowerCase();
+      if (path.endsWith(".aac")) {
+        return "audio/aac";
+      }
+      if (path.endsWith(".mp3")) {
+        return "audio/mpeg";
+      }
+    }
+    return "video/mp2t";
+  }
+
+  /**
+   * Reads from the upstream connection into the buffer as fast as the
+   * network allows, independent of how fast the player consumes data.
+   *
+   * If the upstream connection drops, it is re-established with exponential
+   * backoff while the player drains what is already buffered. Files resume
+   * with a Range request from the last byte received; live streams are
+   * simply re-requested and spliced in, since MP3 decoders resynchronize on
+   * the next frame header. The length and policy are this request's own,
+   * since the proxy's fields move on to whatever it serves next.
+   */
+  private class ReadAhead implements Runnable {
+    private final String url;
+    private final StreamBuffer buffer;
+    private final ProxyMetrics.Session session;
+    private final long expectedLength;
+    private final boolean isLive;
+    private InputStream data;
+    private boolean atEnd = false;
+    private long received = 0;
+
+    private ReadAhead(String url, InputStream data, StreamBuffer buffer,
+                      long expectedLength, BufferPolicy policy,
+                      ProxyMetrics.Session session) {
+      this.url = url;
+      this.data = data;
+      this.buffer = buffer;
+      this.session = session;
+      this.expectedLength = expectedLength;
+      this.isLive = policy == BufferPolicy.LIVE_STREAM;
+    }
+
+    @Override
+    public void run() {
+      IOException error = null;
+      int attempt = 0;
+      try {
+        while (true) {
+          try {
+            if (data == null) {
+              reconnect();
+            }
+            if (relay()) {
+              attempt = 0;
+            }
+            if (isEndOfStream(isLive, received, expectedLength)) {
+              break;
+            }
+            throw new IOException("Upstream ended after " + received +
+                " bytes");
+          } catch (IOException e) {
+            closeUpstream();
+            if (!isRunning || buffer.isClosed()) {
+              break;
+            }
+            if (attempt >= MAX_RECONNECT_ATTEMPTS) {
+              Log.w(LOG_TAG, "Giving up on upstream: " + e.getMessage());
+              error = e;
+              break;
+            }
+            long delay = RECONNECT_BASE_DELAY << attempt;
+            attempt++;
+            Log.w(LOG_TAG, "Upstream failed (" + e.getMessage() +
+                "); reconnecting in " + delay + " ms");
+            Thread.sleep(delay);
+          }
+        }
+      } catch (InterruptedException e) {
+        Log.d(LOG_TAG, "Read ahead interrupted");
+      } finally {
+        buffer.finish(error);
+        closeUpstream();
+      }
+    }
+
+    /**
+     * Copies upstream data into the buffer until the upstream ends.
+     *
+     * @return true if any data was received
+     */
+    private boolean relay() throws IOException, InterruptedException {
+      byte[] buff = new byte[1024 * 16];
+      int readBytes;
+      boolean gotData = false;
+      // Only time spent waiting on upstream counts towards throughput; time
+      // blocked on a full buffer says nothing about the network.
+      long sampleBytes = 0;
+      long sampleMillis = 0;
+      long readStart = SystemClock.elapsedRealtime();
+      while (isRunning && (readBytes = data.read(buff, 0, buff.length)) != -1) {
+        long waited = SystemClock.elapsedRealtime() - readStart;
+        sampleMillis += waited;
+        sampleBytes += readBytes;
+        if (sampleMillis >= THROUGHPUT_SAMPLE_MILLIS) {
+          BandwidthEstimator.addSample(session.viaTor,
+              sampleBytes * 1000 / sampleMillis);
+          sampleBytes = 0;
+          sampleMillis = 0;
+        }
+        buffer.write(buff, 0, readBytes);
+        session.received(readBytes, waited);
+        received += readBytes;
+        bytesDownloaded = received;
+        gotData = true;
+        readStart = SystemClock.elapsedRealtime();
+      }
+      atEnd = isRunning;
+      return gotData;
+    }
+
+    private void reconnect() throws IOException {
+      long rangeStart = isLive ? 0 : received;
+      HttpResponse response = download(url, rangeStart);
+      if (response == null) {
+        throw new IOException("Unable to reconnect to " + url);
+      }
+      reconnectCount++;
+      data = response.getEntity().getContent();
+      atEnd = false;
+      Header contentType = response.getEntity().getContentType();
+      boolean fromStart;
+      try {
+        fromStart = checkResumeResponse(
+            response.getStatusLine().getStatusCode(),
+            contentType == null ? null : contentType.getValue(),
+            response.getEntity().getContentLength(), rangeStart,
+            expectedLength);
+      } catch (IOException e) {
+        // Don't read an error body to its end just to reuse the connection.
+        closeUpstream();
+        throw e;
+      }
+      if (fromStart) {
+        // The server ignored the range, so skip what the player already has.
+        Log.d(LOG_TAG, "Range not honored; skipping " + rangeStart + " bytes");
+        long remaining = rangeStart;
+        while (remaining > 0) {
+          long skipped = data.skip(remaining);
+          if (skipped <= 0) {
+            throw new IOException("Upstream ended while skipping to " +
+                rangeStart);
+          }
+          remaining -= skipped;
+        }
+      }
+    }
+
+    private void closeUpstream() {
+      if (data == null) {
+        return;
+      }
+      try {
+        if (!atEnd && data instanceof ConnectionReleaseTrigger) {
+          // Closing a pooled stream normally reads it to the end so the
+          // connection can be reused, which would never finish on a live
+          // stream. Drop the connection instead.
+          ((ConnectionReleaseTrigger) data).abortConnection();
+        } else {
+          data.close();
+        }
+      } catch (IOException e) {
+        Log.w(LOG_TAG, "Error closing upstream", e);
+      }
+      data = null;
+    }
+  }
+
+  /**
+   * Feeds the segments of an HLS media playlist into the buffer as one
+   * continuous stream. Up to HLS_LOOKAHEAD segments are requested ahead of
+   * the one being written, HLS_PARALLEL_FETCHES at a time, so the next
+   * segment is usually in memory by the time the current one has been
+   * handed over. Live playlists are reloaded about once per target duration
+   * to pick up new segments; a segment that can't be fetched is skipped
+   * rather than stalling the stream.
+   */
+  private class HlsReadAhead implements Runnable {
+    private final String playlistUrl;
+    private final StreamBuffer buffer;
+    private final ProxyMetrics.Session session;
+    private final ExecutorService fetcher =
+        Executors.newFixedThreadPool(HLS_PARALLEL_FETCHES);
+    private final LinkedList<Future<byte[]>> pending =
+        new LinkedList<Future<byte[]>>();
+    private HlsPlaylist playlist;
+    private long loadTime;
+    private long nextSequence;
+    private int failures = 0;
+
+    private HlsReadAhead(String playlistUrl, HlsPlaylist playlist,
+                         StreamBuffer buffer, ProxyMetrics.Session session) {
+      this.playlistUrl = playlistUrl;
+      this.playlist = playlist;
+      this.buffer = buffer;
+      this.session = session;
+      this.loadTime = System.currentTimeMillis();
+      this.nextSequence = getStartSequence();
+    }
+
+    @Override
+    public void run() {
+      IOException error = null;
+      long received = 0;
+      try {
+        while (isRunning && !buffer.isClosed()) {
+          if (!playlist.isEnded() && System.currentTimeMillis() - loadTime >=
+              playlist.getTargetDuration() * 1000L) {
+            reload();
+          }
+          queueSegments();
+          if (pending.isEmpty()) {
+            if (playlist.isEnded()) {
+              break;
+            }
+            // Caught up with the live edge; give the server time to add more.
+            Thread.sleep(playlist.getTargetDuration() * 1000L / 2);
+            reload();
+            continue;
+          }
+
+          byte[] segment;
+          try {
+            segment = pending.removeFirst().get();
+          } catch (ExecutionException e) {
+            fail(e.getCause());
+            continue;
+          }
+          failures = 0;
+          buffer.write(segment, 0, segment.length);
+          received += segment.length;
+          bytesDownloaded = received;
+        }
+      } catch (InterruptedException e) {
+        Log.d(LOG_TAG, "HLS read ahead interrupted");
+      } catch (IOException e) {
+        if (!buffer.isClosed()) {
+          Log.w(LOG_TAG, "Giving up on HLS stream: " + e.getMessage());
+          error = e;
+        }
+      } finally {
+        for (Future<byte[]> future : pending) {
+          future.cancel(true);
+        }
+        fetcher.shutdownNow();
+        buffer.finish(error);
+      }
+    }
+
+    /**
+     * @return Where to start playing: the first segment of a finished
+     * playlist, or a few segments back from the end of a live one
+     */
+    private long getStartSequence() {
+      if (playlist.isEnded()) {
+        return playlist.getMediaSequence();
+      }
+      return Math.max(playlist.getMediaSequence(),
+          playlist.getEndSequence() - HLS_LIVE_START_SEGMENTS);
+    }
+
+    private void queueSegments() {
+      if (nextSequence < playlist.getMediaSequence()) {
+        Log.w(LOG_TAG, "Fell behind the live playlist; skipping " +
+            (playlist.getMediaSequence() - nextSequence) + " segments");
+        nextSequence = playlist.getMediaSequence();
+      } else if (nextSequence > playlist.getEndSequence()) {
+        // The server restarted its numbering.
+        nextSequence = getStartSequence();
+      }
+      while (pending.size() < HLS_LOOKAHEAD) {
+        final String url = playlist.getSegment(nextSequence);
+        if (url == null) {
+          break;
+        }
+        pending.add(fetcher.submit(new Callable<byte[]>() {
+          @Override
+          public byte[] call() throws Exception {
+            return fetchSegment(url);
+          }
+        }));
+        nextSequence++;
+      }
+    }
+
+    private byte[] fetchSegment(String url)
+        throws IOException, InterruptedException {
+      for (int attempt = 0; ; attempt++) {
+        try {
+          return downloadSegment(url, session);
+        } catch (IOException e) {
+          if (attempt + 1 >= HLS_SEGMENT_ATTEMPTS || !isRunning) {
+            throw e;
+          }
+          Thread.sleep(RECONNECT_BASE_DELAY << attempt);
+        }
+      }
+    }
+
+    private void reload() throws IOException, InterruptedException {
+      try {
+        playlist = downloadHlsPlaylist(playlistUrl);
+        loadTime = System.currentTimeMillis();
+      } catch (IOException e) {
+        fail(e);
+        Thread.sleep(RECONNECT_BASE_DELAY << Math.min(failures, 6));
+      }
+    }
+
+    /**
+     * Notes a failed segment or playlist fetch, giving up on the stream
+     * after too many in a row.
+     */
+    private void fail(Throwable cause) throws IOException {
+      failures++;
+      reconnectCount++;
+      if (failures > MAX_RECONNECT_ATTEMPTS) {
+        throw cause instanceof IOException ? (IOException) cause :
+            new IOException(String.valueOf(cause));
+      }
+      Log.w(LOG_TAG, "HLS fetch failed: " + cause);
     }
   }
 
-  private class IcyLineParser extends BasicLineParser {
+  private static class IcyLineParser extends BasicLineParser {
     private static final String ICY_PROTOCOL_NAME = "ICY";
     private IcyLineParser() {
       super();
@@ -337,7 +1075,7 @@ public class StreamProxy implements Runnable {
     }
   }
 
-  class MyClientConnection extends DefaultClientConnection {
+  static class MyClientConnection extends DefaultClientConnection {
     @Override
     protected HttpMessageParser createResponseParser(
         final SessionInputBuffer buffer,
@@ -347,7 +1085,7 @@ public class StreamProxy implements Runnable {
     }
   }
 
-  class MyClientConnectionOperator extends DefaultClientConnectionOperator {
+  static class MyClientConnectionOperator extends DefaultClientConnectionOperator {
     public MyClientConnectionOperator(final SchemeRegistry sr) {
       super(sr);
     }
@@ -358,7 +1096,7 @@ public class StreamProxy implements Runnable {
     }
   }
 
-  class MyClientConnManager extends SingleClientConnManager {
+  static class MyClientConnManager extends ThreadSafeClientConnManager {
     private MyClientConnManager(HttpParams params, SchemeRegistry schreg) {
       super(params, schreg);
     }
@@ -0,0 +1,72 @@
+// Copyright 2012 NPR
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.npr.android.news;
+
+import android.net.Uri;
+import android.os.Build;
+
+import org.npr.android.util.HlsPlaylist;
+import org.npr.android.util.PlaylistResolver;
+import org.npr.api.HttpHelper;
+
+/**
+ * Decides whether a URL has to be played through the StreamProxy or can be
+ * handed straight to the MediaPlayer. Going through the proxy costs a local
+ * socket hop, a thread and a buffer copy, so it is only done when the player
+ * can't handle the URL itself or when the proxy adds something the player
+ * lacks.
+ */
+public class StreamRouter {
+  // Platform version from which the MediaPlayer handles https natively
+  private static final int SDK_NATIVE_HTTPS = 12;
+
+  /**
+   * @param url The URL that is about to be played
+   * @param isStream Whether the playable is a live stream
+   * @return true if the URL should be played through the StreamProxy
+   */
+  public boolean shouldProxy(String url, boolean isStream) {
+    Uri uri = Uri.parse(url);
+    if (!isRemote(uri) || PlaylistResolver.isPlaylist(url)) {
+      return false;
+    }
+
+    // Older players don't speak HLS at all and newer ones fetch segment by
+    // segment without read-ahead; the proxy splices them into one stream.
+    if (HlsPlaylist.isHls(url)) {
+      return true;
+    }
+
+    // The MediaPlayer can't be told to use an HTTP proxy, so when traffic
+    // must go through Tor everything remote has to pass through ours.
+    if (HttpHelper.proxyHost != null) {
+      return true;
+    }
+
+    // Live audio gets the proxy's read-ahead buffer and reconnect handling,
+    // which the platform player lacks.
+    if (isStream) {
+      return true;
+    }
+    return uri.getScheme().equalsIgnoreCase("https") &&
+        Build.VERSION.SDK_INT < SDK_NATIVE_HTTPS;
+  }
+
+  private boolean isRemote(Uri uri) {
+    String scheme = uri.getScheme();
+    return scheme != null &&
+        (scheme.equalsIgnoreCase("http") || scheme.equalsIgnoreCase("https"));
+  }
+}
@@ -0,0 +1,144 @@
+// Copyright 2012 NPR
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.npr.android.util;
+
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+import android.os.Build;
+import android.provider.BaseColumns;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The base of the helpers behind the app's content providers.
+ *
+ * Where the platform supports it the database is opened with write-ahead
+ * logging. Every process reaches the database through its provider, which
+ * serves them on its own binder threads, so this lets a query from one
+ * client run alongside another's write instead of waiting for it. It does
+ * nothing across processes; only the provider's process opens the file.
+ * The writes made most often are run from statements compiled once and
+ * kept for as long as the helper is open.
+ */
+public abstract class DatabaseHelper extends SQLiteOpenHelper {
+  private static final String LOG_TAG = DatabaseHelper.class.getName();
+
+  // Platform version from which SQLite has write-ahead logging and
+  // statements report how many rows they changed
+  private static final int SDK_HONEYCOMB = 11;
+
+  private final Map<String, SQLiteStatement> statements =
+      new HashMap<String, SQLiteStatement>();
+
+  protected DatabaseHelper(Context context, String name, int version) {
+    super(context, name, null /* no cursor factory */, version);
+  }
+
+  @Override
+  public void onOpen(SQLiteDatabase db) {
+    super.onOpen(db);
+    if (Build.VERSION.SDK_INT >= SDK_HONEYCOMB && !db.isReadOnly()) {
+      if (!db.enableWriteAheadLogging()) {
+        // As for in-memory databases
+        Log.d(LOG_TAG, "Write-ahead logging isn't available");
+      }
+    }
+  }
+
+  /**
+   * Gets a statement for the writable database, compiling it the first time
+   * it is asked for. Its bindings are cleared, but otherwise it is shared,
+   * so it may only be used inside a transaction; that keeps every other
+   * thread out until the caller is done with it.
+   */
+  SQLiteStatement getStatement(String sql) {
+    SQLiteDatabase db = getWritableDatabase();
+    if (!db.inTransaction()) {
+      throw new IllegalStateException("Statement used outside a transaction: "
+          + sql);
+    }
+    SQLiteStatement statement;
+    synchronized (statements) {
+      statement = statements.get(sql);
+      if (statement == null) {
+        statement = db.compileStatement(sql);
+        statements.put(sql, statement);
+      }
+    }
+    statement.clearBindings();
+    return statement;
+  }
+
+  /**
+   * Runs an UPDATE or DELETE statement from getStatement.
+   *
+   * @return The number of rows changed
+   */
+  int executeUpdateDelete(SQLiteStatement statement) {
+    if (Build.VERSION.SDK_INT >= SDK_HONEYCOMB) {
+      return statement.executeUpdateDelete();
+    }
+    statement.execute();
+    return (int) getStatement("SELECT changes()").simpleQueryForLong();
+  }
+
+  @Override
+  public synchronized void close() {
+    synchronized (statements) {
+      for (SQLiteStatement statement : statements.values()) {
+        statement.close();
+      }
+      statements.clear();
+    }
+    super.close();
+  }
+
+  /**
+   * @return The selection narrowed to the row whose id ends the URI, if it
+   * has one. The id is left as a placeholder, for getSelectionArgs to fill
+   * in, so the statement's SQL is the same whichever row is asked for.
+   */
+  static String getSelection(Uri uri, String selection) {
+    if (ContentUris.parseId(uri) == -1) {
+      return selection;
+    }
+    String idSelection = BaseColumns._ID + " = ?";
+    return selection == null ? idSelection : selection + " and "
+        + idSelection;
+  }
+
+  /**
+   * @return The selection arguments for getSelection's selection
+   */
+  static String[] getSelectionArgs(Uri uri, String[] selectionArgs) {
+    long id = ContentUris.parseId(uri);
+    if (id == -1) {
+      return selectionArgs;
+    }
+    int count = selectionArgs == null ? 0 : selectionArgs.length;
+    String[] args = new String[count + 1];
+    if (count > 0) {
+      System.arraycopy(selectionArgs, 0, args, 0, count);
+    }
+    args[count] = Long.toString(id);
+    return args;
+  }
+}
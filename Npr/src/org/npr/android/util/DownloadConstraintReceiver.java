@@ -0,0 +1,53 @@
+// Copyright 2012 NPR
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.npr.android.util;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.net.ConnectivityManager;
+import android.util.Log;
+
+import org.npr.android.news.DownloadService;
+
+/**
+ * Wakes the download service when the conditions it waits for may have
+ * changed: the network came up or changed type, or the charger was
+ * plugged in.
+ */
+public class DownloadConstraintReceiver extends BroadcastReceiver {
+  private static final String LOG_TAG =
+      DownloadConstraintReceiver.class.getName();
+
+  @Override
+  public void onReceive(Context context, Intent intent) {
+    boolean isConnectivityChange =
+        ConnectivityManager.CONNECTIVITY_ACTION.equals(intent.getAction());
+    if (isConnectivityChange &&
+        intent.getBooleanExtra(ConnectivityManager.EXTRA_NO_CONNECTIVITY,
+            false)) {
+      return;
+    }
+    Log.d(LOG_TAG, "Checking downloads after " + intent.getAction());
+    Intent checkIntent = new Intent(context, DownloadService.class);
+    checkIntent.setAction(DownloadService.SERVICE_CHECK_QUEUE);
+    // Downloads that failed on a transient error may go through on the new
+    // connection. Those that didn't fit or were refused wait for other
+    // causes.
+    checkIntent.putExtra(DownloadService.EXTRA_RETRY_FAILED,
+        isConnectivityChange);
+    context.startService(checkIntent);
+  }
+}
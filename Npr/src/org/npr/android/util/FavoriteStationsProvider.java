@@ -21,12 +21,14 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
-import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.provider.BaseColumns;
 import android.util.Log;
 
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
 
 /**
  * A database provider that stores favorite stations.
@@ -39,9 +41,17 @@ public class FavoriteStationsProvider extends ContentProvider {
 
   public static final Uri CONTENT_URI = Uri
       .parse("content://org.npr.android.util.FavoriteStations");
+  /**
+   * Inserting a station's values, including PRESET, here gives it that
+   * preset. The station that held the preset moves to the lowest free one,
+   * up to MAX_PRESET, all in one transaction.
+   */
+  public static final Uri PRESET_URI = Uri.withAppendedPath(CONTENT_URI,
+      "preset");
+  public static final int MAX_PRESET = 10;
 
   private static final String DATABASE_NAME = "favorite_stations.db";
-  private static final int DATABASE_VERSION = 2;
+  private static final int DATABASE_VERSION = 3;
   private static final String TABLE_NAME = "items";
 
   private FavoriteStationsHelper helper;
@@ -56,12 +66,14 @@ public class FavoriteStationsProvider extends ContentProvider {
   public Cursor query(Uri uri, String[] projection, String selection,
                       String[] selectionArgs, String sortOrder) {
     SQLiteDatabase db = helper.getWritableDatabase();
-    String realSelection = getSelectionFromId(uri, selection);
+    String realSelection = DatabaseHelper.getSelection(uri, selection);
+    String[] realSelectionArgs =
+        DatabaseHelper.getSelectionArgs(uri, selectionArgs);
 
     Cursor result = db.query(TABLE_NAME, projection, realSelection,
-        selectionArgs, null, null, sortOrder);
+        realSelectionArgs, null, null, sortOrder);
     Log.d(LOG_TAG, uri.toString() + ";" + realSelection + ";"
-        + Arrays.toString(selectionArgs));
+        + Arrays.toString(realSelectionArgs));
     return result;
   }
 
@@ -73,6 +85,10 @@ public class FavoriteStationsProvider extends ContentProvider {
   @Override
   public Uri insert(Uri uri, ContentValues contentValues) {
     SQLiteDatabase db = helper.getWritableDatabase();
+    if (PRESET_URI.equals(uri)) {
+      return ContentUris.withAppendedId(CONTENT_URI,
+          setPreset(db, contentValues));
+    }
     long id = db.insert(TABLE_NAME, Items.NAME, contentValues);
     Log.d(LOG_TAG, "Adding new station to favorites database.");
     return ContentUris.withAppendedId(uri, id);
@@ -81,30 +97,96 @@ public class FavoriteStationsProvider extends ContentProvider {
   @Override
   public int delete(Uri uri, String selection, String[] selectionArgs) {
     SQLiteDatabase db = helper.getWritableDatabase();
-    String realSelection = getSelectionFromId(uri, selection);
     Log.d(LOG_TAG, "Deleting station from favorites database.");
-    return db.delete(TABLE_NAME, realSelection, selectionArgs);
+    return db.delete(TABLE_NAME, DatabaseHelper.getSelection(uri, selection),
+        DatabaseHelper.getSelectionArgs(uri, selectionArgs));
   }
 
   @Override
   public int update(Uri uri, ContentValues contentValues, String selection,
                     String[] selectionArgs) {
     SQLiteDatabase db = helper.getWritableDatabase();
-    String realSelection = getSelectionFromId(uri, selection);
-    return db.update(TABLE_NAME, contentValues, realSelection, selectionArgs);
+    return db.update(TABLE_NAME, contentValues,
+        DatabaseHelper.getSelection(uri, selection),
+        DatabaseHelper.getSelectionArgs(uri, selectionArgs));
   }
 
 
-  private String getSelectionFromId(Uri uri, String selection) {
-    long id = ContentUris.parseId(uri);
-    if (id == -1) {
-      return selection;
+  /**
+   * Reads every favorite's preset once and works out the reassignment in
+   * memory, so the writes are all that is left to do.
+   *
+   * @return The id of the station's row
+   */
+  private long setPreset(SQLiteDatabase db, ContentValues station) {
+    String stationId = station.getAsString(Items.STATION_ID);
+    String preset = station.getAsString(Items.PRESET);
+    db.beginTransaction();
+    try {
+      long stationRow = -1;
+      long presetRow = -1;
+      Set<String> taken = new HashSet<String>();
+      Cursor c = db.query(TABLE_NAME, new String[] {Items._ID,
+          Items.STATION_ID, Items.PRESET}, null, null, null, null, null);
+      while (c.moveToNext()) {
+        String rowPreset = c.getString(2);
+        if (stationId.equals(c.getString(1))) {
+          // The station gives up any preset it had.
+          stationRow = c.getLong(0);
+        } else if (rowPreset != null) {
+          taken.add(rowPreset);
+        }
+        if (preset.equals(rowPreset)) {
+          presetRow = c.getLong(0);
+        }
+      }
+      c.close();
+
+      if (stationRow >= 0 && stationRow == presetRow) {
+        // It already has this preset.
+        db.setTransactionSuccessful();
+        return stationRow;
+      }
+
+      if (stationRow < 0) {
+        stationRow = db.insert(TABLE_NAME, Items.NAME, station);
+      } else {
+        setPreset(stationRow, preset);
+      }
+
+      taken.add(preset);
+      if (presetRow >= 0) {
+        // Move the displaced station to the first open slot, if any.
+        String open = null;
+        for (int number = 1; number <= MAX_PRESET && open == null; number++) {
+          if (!taken.contains(Integer.toString(number))) {
+            open = Integer.toString(number);
+          }
+        }
+        setPreset(presetRow, open);
+      }
+      db.setTransactionSuccessful();
+      return stationRow;
+    } finally {
+      db.endTransaction();
     }
-    String realSelection = selection == null ? "" : selection + " and ";
-    realSelection += Items._ID + " = " + id;
-    return realSelection;
   }
 
+  /**
+   * Sets the preset of one row, or clears it for null. Call it inside a
+   * transaction.
+   */
+  private void setPreset(long id, String preset) {
+    SQLiteStatement update = helper.getStatement("UPDATE " + TABLE_NAME
+        + " SET " + Items.PRESET + " = ? WHERE " + Items._ID + " = ?");
+    if (preset == null) {
+      update.bindNull(1);
+    } else {
+      update.bindString(1, preset);
+    }
+    update.bindLong(2, id);
+    update.execute();
+  }
 
   public static class Items implements BaseColumns {
     public static final String NAME = "name";
@@ -124,10 +206,10 @@ public class FavoriteStationsProvider extends ContentProvider {
   }
 
 
-  protected static class FavoriteStationsHelper extends SQLiteOpenHelper {
+  protected static class FavoriteStationsHelper extends DatabaseHelper {
 
     public FavoriteStationsHelper(Context context) {
-      super(context, DATABASE_NAME, null, DATABASE_VERSION);
+      super(context, DATABASE_NAME, DATABASE_VERSION);
     }
 
     @Override
@@ -137,6 +219,14 @@ public class FavoriteStationsProvider extends ContentProvider {
           + " TEXT," + Items.FREQUENCY + " TEXT," + Items.BAND
           + " TEXT," + Items.STATION_ID + " TEXT," + Items.PRESET + " TEXT"
           + ");");
+      createIndexes(db);
+    }
+
+    private void createIndexes(SQLiteDatabase db) {
+      db.execSQL("CREATE INDEX IF NOT EXISTS " + TABLE_NAME + "_station ON "
+          + TABLE_NAME + " (" + Items.STATION_ID + ");");
+      db.execSQL("CREATE INDEX IF NOT EXISTS " + TABLE_NAME + "_preset ON "
+          + TABLE_NAME + " (" + Items.PRESET + ");");
     }
 
     @Override
@@ -145,6 +235,11 @@ public class FavoriteStationsProvider extends ContentProvider {
           "Upgrading database from version " + oldVersion +
               " to " + newVersion);
 
+      if (oldVersion >= 2) {
+        createIndexes(db);
+        return;
+      }
+
       // Check if this new column exists, and add if it doesn't
       try {
         db.query(TABLE_NAME, new String[]{Items.PRESET}, null, null, null,
@@ -159,6 +254,7 @@ public class FavoriteStationsProvider extends ContentProvider {
           Log.e(LOG_TAG, "", ex);
         }
       }
+      createIndexes(db);
     }
   }
 }
@@ -125,40 +125,23 @@ public class FavoriteStationsRepository {
     return favoriteStationEntry;
   }
 
+  /**
+   * Gives the station the preset, adding it to the favorites if need be.
+   * Whichever station held the preset moves to the first open one. The
+   * provider does all of this in a single transaction.
+   *
+   * @return The id of the station's favorite entry
+   */
   public long setPreset(Station station, String preset) {
-
-    // Does this preset already have a station?
-    FavoriteStationEntry oldPreset = getFavoriteStationForPreset(preset);
-
-    // Does this station already have a preset number?
-    FavoriteStationEntry matchingStationPreset =
-        getFavoriteStationForStationId(station.getId());
-
-    if (oldPreset == null) {
-      if (matchingStationPreset == null) {
-        return add(station, preset);
-      } else {
-        // Just update the number to the new number
-        return update(matchingStationPreset.id, preset);
-      }
-    } else {
-      update(oldPreset.id, null);
-      long newId;
-      if (matchingStationPreset == null) {
-        newId = add(station, preset);
-      } else {
-        newId = update(matchingStationPreset.id, preset);
-      }
-      // Move the existing item to the first open slot
-      int newNumber = 1;
-      while (getFavoriteStationForPreset(Integer.toString(newNumber)) != null && newNumber <= 10)
-        newNumber++;
-
-      if (newNumber <= 10) {
-        update(oldPreset.id, Integer.toString(newNumber));
-      }
-
-      return newId;
-    }
+    ContentValues values = new ContentValues();
+    values.put(Items.NAME, station.getName());
+    values.put(Items.MARKET, station.getMarketCity());
+    values.put(Items.FREQUENCY, station.getFrequency());
+    values.put(Items.BAND, station.getBand());
+    values.put(Items.STATION_ID, station.getId());
+    values.put(Items.PRESET, preset);
+    Uri uri = contentResolver.insert(FavoriteStationsProvider.PRESET_URI,
+        values);
+    return ContentUris.parseId(uri);
   }
 }
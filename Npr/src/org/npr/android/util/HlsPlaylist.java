@@ -0,0 +1,219 @@
+// Copyright 2012 NPR
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.npr.android.util;
+
+import android.net.Uri;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An HTTP Live Streaming (.m3u8) playlist. A master playlist lists variant
+ * streams at different bit rates; a media playlist lists the segments of one
+ * stream, numbered from its media sequence. Live media playlists have no
+ * end tag and slide forward as the server adds segments, so they have to be
+ * reloaded while playing.
+ */
+public class HlsPlaylist {
+  private static final String EXTM3U = "#EXTM3U";
+  private static final String TARGET_DURATION = "#EXT-X-TARGETDURATION:";
+  private static final String MEDIA_SEQUENCE = "#EXT-X-MEDIA-SEQUENCE:";
+  private static final String END_LIST = "#EXT-X-ENDLIST";
+  private static final String KEY = "#EXT-X-KEY:";
+  private static final String STREAM_INF = "#EXT-X-STREAM-INF:";
+
+  private static final Pattern BANDWIDTH =
+      Pattern.compile("(?:^|,)BANDWIDTH=(\\d+)");
+  private static final Pattern KEY_METHOD =
+      Pattern.compile("(?:^|,)METHOD=([A-Z0-9-]+)");
+
+  // Used when a media playlist leaves out its target duration
+  private static final int DEFAULT_TARGET_DURATION = 10;
+
+  /**
+   * One entry of a master playlist.
+   */
+  public static class Variant {
+    public final int bandwidth;
+    public final String url;
+
+    public Variant(int bandwidth, String url) {
+      this.bandwidth = bandwidth;
+      this.url = url;
+    }
+  }
+
+  private final List<String> segments = new ArrayList<String>();
+  private final List<Variant> variants = new ArrayList<Variant>();
+  private long mediaSequence = 0;
+  private int targetDuration = DEFAULT_TARGET_DURATION;
+  private boolean ended = false;
+  private boolean encrypted = false;
+
+  /**
+   * Reads the whole playlist from the stream and closes it.
+   *
+   * @param baseUrl The URL the playlist came from, used to resolve relative
+   *                segment and variant URLs
+   * @throws IOException if the stream fails or isn't an M3U8 playlist
+   */
+  public HlsPlaylist(InputStream stream, String baseUrl) throws IOException {
+    BufferedReader reader = new BufferedReader(new InputStreamReader(stream),
+        8192);
+    try {
+      parse(reader, baseUrl);
+    } finally {
+      reader.close();
+    }
+  }
+
+  private void parse(BufferedReader reader, String baseUrl)
+      throws IOException {
+    String line = reader.readLine();
+    if (line == null ||
+        !line.trim().replace("\ufeff", "").startsWith(EXTM3U)) {
+      throw new IOException("Not an HLS playlist: " + baseUrl);
+    }
+    int variantBandwidth = -1;
+    while ((line = reader.readLine()) != null) {
+      line = line.trim();
+      if (line.length() == 0) {
+        continue;
+      }
+      if (line.startsWith(TARGET_DURATION)) {
+        targetDuration = parseInt(line.substring(TARGET_DURATION.length()),
+            DEFAULT_TARGET_DURATION);
+      } else if (line.startsWith(MEDIA_SEQUENCE)) {
+        mediaSequence = parseInt(line.substring(MEDIA_SEQUENCE.length()), 0);
+      } else if (line.startsWith(END_LIST)) {
+        ended = true;
+      } else if (line.startsWith(KEY)) {
+        Matcher matcher = KEY_METHOD.matcher(line.substring(KEY.length()));
+        encrypted = matcher.find() && !matcher.group(1).equals("NONE");
+      } else if (line.startsWith(STREAM_INF)) {
+        Matcher matcher =
+            BANDWIDTH.matcher(line.substring(STREAM_INF.length()));
+        variantBandwidth = matcher.find() ? parseInt(matcher.group(1), 0) : 0;
+      } else if (line.charAt(0) != '#') {
+        String url = M3uParser.resolve(baseUrl, line);
+        if (variantBandwidth >= 0) {
+          variants.add(new Variant(variantBandwidth, url));
+          variantBandwidth = -1;
+        } else {
+          segments.add(url);
+        }
+      }
+    }
+  }
+
+  private static int parseInt(String value, int defaultValue) {
+    try {
+      return Integer.parseInt(value.trim());
+    } catch (NumberFormatException e) {
+      return defaultValue;
+    }
+  }
+
+  /**
+   * @return true if this is a master playlist that lists variant streams
+   * rather than segments
+   */
+  public boolean isMaster() {
+    return variants.size() > 0;
+  }
+
+  public List<Variant> getVariants() {
+    return variants;
+  }
+
+  /**
+   * @return The variant with the lowest bandwidth, or null if this is not a
+   * master playlist
+   */
+  public Variant getLowestVariant() {
+    Variant lowest = null;
+    for (Variant variant : variants) {
+      if (lowest == null || variant.bandwidth < lowest.bandwidth) {
+        lowest = variant;
+      }
+    }
+    return lowest;
+  }
+
+  public List<String> getSegments() {
+    return segments;
+  }
+
+  /**
+   * @return The sequence number of the first segment in the playlist
+   */
+  public long getMediaSequence() {
+    return mediaSequence;
+  }
+
+  /**
+   * @return The sequence number one past the last segment in the playlist
+   */
+  public long getEndSequence() {
+    return mediaSequence + segments.size();
+  }
+
+  /**
+   * @return The URL of the segment with the given sequence number, or null
+   * if it is not in the playlist
+   */
+  public String getSegment(long sequence) {
+    long index = sequence - mediaSequence;
+    if (index < 0 || index >= segments.size()) {
+      return null;
+    }
+    return segments.get((int) index);
+  }
+
+  /**
+   * @return The maximum segment duration, in seconds
+   */
+  public int getTargetDuration() {
+    return targetDuration;
+  }
+
+  /**
+   * @return true if the server will not add more segments
+   */
+  public boolean isEnded() {
+    return ended;
+  }
+
+  /**
+   * @return true if the segments are encrypted
+   */
+  public boolean isEncrypted() {
+    return encrypted;
+  }
+
+  /**
+   * @return true if the URL names an HLS playlist
+   */
+  public static boolean isHls(String url) {
+    String path = Uri.parse(url).getPath();
+    return path != null && path.toLowerCase().endsWith(".m3u8");
+  }
+}
@@ -14,43 +14,117 @@
 
 package org.npr.android.util;
 
+import android.util.Log;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.util.LinkedList;
 import java.util.List;
 
+/**
+ * Parses plain and extended M3U playlists. Titles from #EXTINF lines are
+ * kept alongside their URLs, and relative entries are resolved against the
+ * playlist's own URL when it is known.
+ */
 public class M3uParser implements PlaylistParser {
+  private static final String LOG_TAG = M3uParser.class.getName();
+  private static final String EXTINF = "#EXTINF:";
+
   private final BufferedReader reader;
+  private final String baseUrl;
+  private List<String> urls;
+  private List<String> titles;
 
   public M3uParser(File file) throws FileNotFoundException {
-    this.reader = new BufferedReader(new FileReader(file), 1024);
+    this(new FileInputStream(file), null);
+  }
+
+  /**
+   * Reads the playlist straight from a stream, such as an HTTP response.
+   * The stream is closed once the URLs have been read.
+   *
+   * @param baseUrl The URL the playlist came from, used to resolve relative
+   *                entries; may be null
+   */
+  public M3uParser(InputStream stream, String baseUrl) {
+    this.reader = new BufferedReader(new InputStreamReader(stream), 8192);
+    this.baseUrl = baseUrl;
   }
 
   @Override
-  public List<String> getUrls() {
-    LinkedList<String> urls = new LinkedList<String>();
-    while (true) {
-      try {
-        String url = reader.readLine();
-        if (url == null) {
-          break;
-        } else if (isUrl(url)) {
-          urls.add(url);
+  public List<String> getUrls() throws IOException {
+    parse();
+    return urls;
+  }
+
+  /**
+   * @return The #EXTINF title of each URL, in the same order as getUrls(),
+   * with null where an entry had none
+   */
+  public List<String> getTitles() throws IOException {
+    parse();
+    return titles;
+  }
+
+  private void parse() throws IOException {
+    if (urls != null) {
+      return;
+    }
+    List<String> parsedUrls = new LinkedList<String>();
+    List<String> parsedTitles = new LinkedList<String>();
+    String title = null;
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String trimmed = line.trim();
+        if (trimmed.startsWith(EXTINF)) {
+          // #EXTINF:<duration>,<title>
+          int comma = trimmed.indexOf(',');
+          title = comma < 0 ? null : trimmed.substring(comma + 1).trim();
+        } else if (isUrl(trimmed)) {
+          parsedUrls.add(resolve(baseUrl, trimmed));
+          parsedTitles.add(title);
+          title = null;
         }
+      }
+    } finally {
+      try {
+        reader.close();
       } catch (IOException e) {
-        e.printStackTrace();
+        Log.w(LOG_TAG, "Error closing playlist", e);
       }
     }
-    return urls;
+    urls = parsedUrls;
+    titles = parsedTitles;
+  }
+
+  /**
+   * @return url resolved against baseUrl, or url unchanged if it is already
+   * absolute or can't be resolved
+   */
+  static String resolve(String baseUrl, String url) {
+    if (baseUrl == null || url.contains("://")) {
+      return url;
+    }
+    try {
+      return new URI(baseUrl).resolve(url).toString();
+    } catch (URISyntaxException e) {
+      return url;
+    } catch (IllegalArgumentException e) {
+      return url;
+    }
   }
 
   public boolean isUrl(String url) {
     String trimmed = url.trim();
     return trimmed.length() > 0 && trimmed.charAt(0) != '#'
-        && trimmed.charAt(0) != '<';
+        && trimmed.charAt(0) != '<' && trimmed.charAt(0) != '\ufeff';
   }
 }
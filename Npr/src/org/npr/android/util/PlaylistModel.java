@@ -0,0 +1,402 @@
+// Copyright 2012 NPR
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.npr.android.util;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.text.TextUtils;
+import android.util.Log;
+
+import org.npr.android.news.Playable;
+import org.npr.android.util.PlaylistProvider.Items;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The playlist held in memory for the process, so that walking it during
+ * playback doesn't go to the content provider for every step. It is loaded
+ * once, reloaded in the background whenever the playlist provider reports
+ * a change, and entries marked read are written back in batches.
+ *
+ * Listeners are told what changed entry by entry. They are called on the
+ * model's own thread, or on the thread that marked an entry read.
+ */
+public class PlaylistModel {
+  private static final String LOG_TAG = PlaylistModel.class.getName();
+
+  // How long entries marked read wait to be written together
+  private static final long FLUSH_DELAY = 2000;
+
+  private static PlaylistModel instance;
+
+  /**
+   * One entry's part in a change to the playlist. Positions are indexes
+   * into the playlist before and after the change.
+   */
+  public static class Change {
+    public static final int INSERTED = 0;
+    public static final int REMOVED = 1;
+    public static final int MOVED = 2;
+    public static final int READ = 3;
+
+    public final int type;
+    public final long id;
+    // -1 for an inserted entry
+    public final int from;
+    // -1 for a removed entry
+    public final int to;
+
+    Change(int type, long id, int from, int to) {
+      this.type = type;
+      this.id = id;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    public String toString() {
+      return type + ":" + id + ":" + from + ">" + to;
+    }
+  }
+
+  public interface Listener {
+    void onPlaylistChanged(List<Change> changes);
+  }
+
+  private final ContentResolver contentResolver;
+  private final ScheduledExecutorService worker =
+      Executors.newSingleThreadScheduledExecutor();
+  private final List<Listener> listeners =
+      new CopyOnWriteArrayList<Listener>();
+
+  private List<PlaylistEntry> entries;
+  private Map<Long, Integer> positions;
+  private Set<Long> readIds;
+  private final Set<Long> pendingReads = new HashSet<Long>();
+  private boolean isFlushScheduled;
+
+  private final Runnable reload = new Runnable() {
+    @Override
+    public void run() {
+      load();
+    }
+  };
+
+  private final Runnable flush = new Runnable() {
+    @Override
+    public void run() {
+      flush();
+    }
+  };
+
+  public static synchronized PlaylistModel getInstance(Context context) {
+    if (instance == null) {
+      instance = new PlaylistModel(context.getApplicationContext());
+    }
+    return instance;
+  }
+
+  private PlaylistModel(Context applicationContext) {
+    contentResolver = applicationContext.getContentResolver();
+    contentResolver.registerContentObserver(PlaylistProvider.CONTENT_URI,
+        true, new ContentObserver(null) {
+          @Override
+          public void onChange(boolean selfChange) {
+            boolean isLoaded;
+            synchronized (PlaylistModel.this) {
+              isLoaded = entries != null;
+            }
+            if (isLoaded) {
+              worker.execute(reload);
+            }
+          }
+        });
+  }
+
+  public void addListener(Listener listener) {
+    listeners.add(listener);
+  }
+
+  public void removeListener(Listener listener) {
+    listeners.remove(listener);
+  }
+
+  /**
+   * Reads the whole playlist and replaces the one in memory, telling the
+   * listeners how it differs.
+   */
+  private void load() {
+    List<PlaylistEntry> loaded = new ArrayList<PlaylistEntry>();
+    Set<Long> loadedRead = new HashSet<Long>();
+    Cursor c = contentResolver.query(PlaylistProvider.CONTENT_URI,
+        new String[] {Items._ID, Items.URL, Items.NAME, Items.PLAY_ORDER,
+            Items.STORY_ID, Items.IS_READ}, null, null,
+        Items.PLAY_ORDER + ", " + Items._ID);
+    while (c.moveToNext()) {
+      PlaylistEntry entry = new PlaylistEntry(c.getLong(0), c.getString(1),
+          c.getString(2), false, c.getInt(3), c.getString(4));
+      loaded.add(entry);
+      if (c.getInt(5) != 0) {
+        loadedRead.add(entry.id);
+      }
+    }
+    c.close();
+
+    List<Change> changes;
+    synchronized (this) {
+      // Reads not written yet still count.
+      loadedRead.addAll(pendingReads);
+      changes = entries == null ? null :
+          diff(getIds(entries), readIds, getIds(loaded), loadedRead);
+      entries = loaded;
+      readIds = loadedRead;
+      positions = new HashMap<Long, Integer>();
+      for (int i = 0; i < loaded.size(); i++) {
+        positions.put(loaded.get(i).id, i);
+      }
+    }
+    Log.d(LOG_TAG, "Loaded " + loaded.size() + " playlist entries");
+    if (changes != null && !changes.isEmpty()) {
+      notifyListeners(changes);
+    }
+  }
+
+  private void ensureLoaded() {
+    synchronized (this) {
+      if (entries != null) {
+        return;
+      }
+    }
+    load();
+  }
+
+  private void notifyListeners(List<Change> changes) {
+    for (Listener listener : listeners) {
+      listener.onPlaylistChanged(changes);
+    }
+  }
+
+  private static List<Long> getIds(List<PlaylistEntry> entries) {
+    List<Long> ids = new ArrayList<Long>(entries.size());
+    for (PlaylistEntry entry : entries) {
+      ids.add(entry.id);
+    }
+    return ids;
+  }
+
+  /**
+   * Works out what happened between two versions of the playlist. Entries
+   * kept by both are only reported as moved if they fall outside the
+   * longest run that kept its relative order, so moving one entry past
+   * many others reports just the one.
+   */
+  static List<Change> diff(List<Long> oldIds, Set<Long> oldRead,
+                           List<Long> newIds, Set<Long> newRead) {
+    List<Change> changes = new ArrayList<Change>();
+    Map<Long, Integer> newPositions = new HashMap<Long, Integer>();
+    for (int i = 0; i < newIds.size(); i++) {
+      newPositions.put(newIds.get(i), i);
+    }
+
+    // New positions of the kept entries, in their old order
+    List<Integer> keptFrom = new ArrayList<Integer>();
+    List<Integer> keptTo = new ArrayList<Integer>();
+    for (int i = 0; i < oldIds.size(); i++) {
+      Integer to = newPositions.remove(oldIds.get(i));
+      if (to == null) {
+        changes.add(new Change(Change.REMOVED, oldIds.get(i), i, -1));
+      } else {
+        keptFrom.add(i);
+        keptTo.add(to);
+      }
+    }
+    for (Map.Entry<Long, Integer> added : newPositions.entrySet()) {
+      changes.add(new Change(Change.INSERTED, added.getKey(), -1,
+          added.getValue()));
+    }
+
+    boolean[] inOrder = longestIncreasingRun(keptTo);
+    for (int i = 0; i < keptTo.size(); i++) {
+      long id = oldIds.get(keptFrom.get(i));
+      if (!inOrder[i]) {
+        changes.add(new Change(Change.MOVED, id, keptFrom.get(i),
+            keptTo.get(i)));
+      }
+      if (newRead.contains(id) && !oldRead.contains(id)) {
+        changes.add(new Change(Change.READ, id, keptFrom.get(i),
+            keptTo.get(i)));
+      }
+    }
+    return changes;
+  }
+
+  /**
+   * @return Which of the values make up the longest increasing subsequence
+   */
+  private static boolean[] longestIncreasingRun(List<Integer> values) {
+    int n = values.size();
+    // tails[k] is the index of the smallest value ending a run of length k+1
+    int[] tails = new int[n];
+    int[] previous = new int[n];
+    int length = 0;
+    for (int i = 0; i < n; i++) {
+      int low = 0;
+      int high = length;
+      while (low < high) {
+        int middle = (low + high) / 2;
+        if (values.get(tails[middle]) < values.get(i)) {
+          low = middle + 1;
+        } else {
+          high = middle;
+        }
+      }
+      previous[i] = low > 0 ? tails[low - 1] : -1;
+      tails[low] = i;
+      if (low == length) {
+        length++;
+      }
+    }
+    boolean[] inRun = new boolean[n];
+    for (int i = length > 0 ? tails[length - 1] : -1; i >= 0;
+         i = previous[i]) {
+      inRun[i] = true;
+    }
+    return inRun;
+  }
+
+  private Playable toPlayable(int position) {
+    if (position < 0 || position >= entries.size()) {
+      return null;
+    }
+    return Playable.PlayableFactory.fromPlaylistEntry(entries.get(position));
+  }
+
+  public Playable getFirstUnreadEntry() {
+    ensureLoaded();
+    synchronized (this) {
+      for (int i = 0; i < entries.size(); i++) {
+        if (!readIds.contains(entries.get(i).id)) {
+          return toPlayable(i);
+        }
+      }
+      return null;
+    }
+  }
+
+  public Playable getNextEntry(long id) {
+    ensureLoaded();
+    synchronized (this) {
+      Integer position = positions.get(id);
+      return position == null ? null : toPlayable(position + 1);
+    }
+  }
+
+  public Playable getPreviousEntry(long id) {
+    ensureLoaded();
+    synchronized (this) {
+      Integer position = positions.get(id);
+      return position == null ? null : toPlayable(position - 1);
+    }
+  }
+
+  public boolean isFirstEntry(long id) {
+    ensureLoaded();
+    synchronized (this) {
+      Integer position = positions.get(id);
+      return position != null && position == 0;
+    }
+  }
+
+  public boolean isLastEntry(long id) {
+    ensureLoaded();
+    synchronized (this) {
+      Integer position = positions.get(id);
+      return position != null && position == entries.size() - 1;
+    }
+  }
+
+  public int getItemCount() {
+    ensureLoaded();
+    synchronized (this) {
+      return entries.size();
+    }
+  }
+
+  public int getReadCount() {
+    ensureLoaded();
+    synchronized (this) {
+      return readIds.size();
+    }
+  }
+
+  /**
+   * Marks an entry read straight away in memory. The write to the playlist
+   * follows shortly, together with any others made in the meantime.
+   */
+  public void markAsRead(long id) {
+    ensureLoaded();
+    Change change;
+    synchronized (this) {
+      Integer position = positions.get(id);
+      if (position == null || !readIds.add(id)) {
+        return;
+      }
+      pendingReads.add(id);
+      if (!isFlushScheduled) {
+        isFlushScheduled = true;
+        worker.schedule(flush, FLUSH_DELAY, TimeUnit.MILLISECONDS);
+      }
+      change = new Change(Change.READ, id, position, position);
+    }
+    notifyListeners(Collections.singletonList(change));
+  }
+
+  /**
+   * Writes out any entries marked read but not yet written, in a single
+   * update. Does database work, so call it off the main thread.
+   */
+  public void flush() {
+    List<String> ids;
+    synchronized (this) {
+      isFlushScheduled = false;
+      if (pendingReads.isEmpty()) {
+        return;
+      }
+      ids = new ArrayList<String>(pendingReads.size());
+      for (long id : pendingReads) {
+        ids.add(Long.toString(id));
+      }
+      pendingReads.clear();
+    }
+    Log.d(LOG_TAG, "Marking " + ids.size() + " playlist entries read");
+    ContentValues values = new ContentValues();
+    values.put(Items.IS_READ, true);
+    contentResolver.update(PlaylistProvider.CONTENT_URI, values,
+        Items._ID + " IN (" + TextUtils.join(",", ids) + ")", null);
+  }
+}
@@ -14,8 +14,13 @@
 
 package org.npr.android.util;
 
+import java.io.IOException;
 import java.util.List;
 
 public interface PlaylistParser {
-  public List<String> getUrls();
+  /**
+   * @throws IOException If the playlist couldn't be read to its end, so the
+   * URLs would be incomplete
+   */
+  public List<String> getUrls() throws IOException;
 }
@@ -15,29 +15,69 @@
 package org.npr.android.util;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
-import android.database.DatabaseUtils;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
-import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
 import android.provider.BaseColumns;
 import android.util.Log;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 
 public class PlaylistProvider extends ContentProvider {
   public static final Uri CONTENT_URI = Uri
       .parse("content://org.npr.android.util.Playlist");
+  /**
+   * Updating this URI moves the entry at position MOVE_FROM in the playlist
+   * to position MOVE_TO. Only the moved entry is written.
+   */
+  public static final Uri MOVE_URI = Uri.withAppendedPath(CONTENT_URI,
+      "move");
+  /**
+   * Querying this URI gives a single row of Summary columns, totalled over
+   * the entries matching the selection.
+   */
+  public static final Uri SUMMARY_URI = Uri.withAppendedPath(CONTENT_URI,
+      "summary");
+  public static final String MOVE_FROM = "from";
+  public static final String MOVE_TO = "to";
+  /**
+   * Inserting or updating with this value, an entry id or -1 for the front
+   * of the playlist, places the entry just after that one in the play order.
+   */
+  public static final String PLACE_AFTER = "place_after";
+  /**
+   * Play orders are kept this far apart so an entry can be placed between
+   * two others by writing only its own order. When two neighbours end up
+   * adjacent the whole playlist is spread out again.
+   */
+  public static final int ORDER_GAP = 1024;
   private static final String DATABASE_NAME = "playlist.db";
-  private static final int DATABASE_VERSION = 4;
+  private static final int DATABASE_VERSION = 9;
   protected static final String TABLE_NAME = "items";
   private static final String LOG_TAG = PlaylistProvider.class.getName();
   private PlaylistHelper helper;
 
+  // How long changes are gathered before observers are notified
+  private static final long NOTIFY_DELAY = 250;
+  private final Handler notifyHandler = new Handler(Looper.getMainLooper());
+  private final Set<Uri> pendingChanges = new HashSet<Uri>();
+
   /**
    * For testing purposes, allows to override the existing helper so we don't
    * touch the actual filesystem.
@@ -49,27 +89,100 @@ public class PlaylistProvider extends ContentProvider {
   }
 
   /**
-   * Useful for testing.
-   *
-   * @param helper A PlaylistHelper stub for testing
-   * @return The max play order, or -1 if there are no entries in the playlist
+   * @return The play order for an entry placed after the given one, or at
+   * the front of the playlist for -1. May spread out the play orders of the
+   * whole playlist, so call it inside a transaction.
+   */
+  private int getOrderAfter(SQLiteDatabase db, long afterId) {
+    for (int attempt = 0; ; attempt++) {
+      String after;
+      if (afterId < 0) {
+        after = helper.getStatement("SELECT min(" + Items.PLAY_ORDER
+            + ") FROM " + TABLE_NAME).simpleQueryForString();
+        if (after == null) {
+          return 0;
+        }
+        return Integer.parseInt(after) - ORDER_GAP;
+      }
+      SQLiteStatement lookup = helper.getStatement("SELECT "
+          + Items.PLAY_ORDER + " FROM " + TABLE_NAME + " WHERE " + Items._ID
+          + " = ?");
+      lookup.bindLong(1, afterId);
+      long before;
+      try {
+        before = lookup.simpleQueryForLong();
+      } catch (SQLiteDoneException e) {
+        // No such entry; append instead.
+        return getNextOrder();
+      }
+      SQLiteStatement next = helper.getStatement("SELECT min("
+          + Items.PLAY_ORDER + ") FROM " + TABLE_NAME + " WHERE "
+          + Items.PLAY_ORDER + " > ?");
+      next.bindLong(1, before);
+      after = next.simpleQueryForString();
+      if (after == null) {
+        return (int) before + ORDER_GAP;
+      }
+      int gap = Integer.parseInt(after) - (int) before;
+      if (gap >= 2 || attempt > 0) {
+        return (int) before + gap / 2;
+      }
+      spreadOrders(db);
+    }
+  }
+
+  /**
+   * @return The play order for an entry appended to the playlist. Call it
+   * inside a transaction.
    */
-  private static int getMax(PlaylistHelper helper) {
-    SQLiteDatabase db = helper.getReadableDatabase();
+  private int getNextOrder() {
+    return (int) helper.getStatement("SELECT ifnull(max(" + Items.PLAY_ORDER
+        + "), -" + ORDER_GAP + ") + " + ORDER_GAP + " FROM " + TABLE_NAME)
+        .simpleQueryForLong();
+  }
 
-    if (DatabaseUtils.queryNumEntries(db, TABLE_NAME) == 0) {
-      return -1;
+  /**
+   * Renumbers the playlist ORDER_GAP apart, keeping its order.
+   */
+  private static void spreadOrders(SQLiteDatabase db) {
+    Log.d(LOG_TAG, "Spreading out play orders");
+    Cursor c = db.query(TABLE_NAME, new String[] {Items._ID}, null, null,
+        null, null, Items.PLAY_ORDER + ", " + Items._ID);
+    SQLiteStatement update = db.compileStatement("UPDATE " + TABLE_NAME
+        + " SET " + Items.PLAY_ORDER + " = ? WHERE " + Items._ID + " = ?");
+    try {
+      for (int order = 0; c.moveToNext(); order += ORDER_GAP) {
+        update.bindLong(1, order);
+        update.bindLong(2, c.getLong(0));
+        update.execute();
+      }
+    } finally {
+      update.close();
+      c.close();
     }
+  }
 
-    return (int) DatabaseUtils.longForQuery(db, "select max(play_order) from "
-        + TABLE_NAME, null);
+  /**
+   * Replaces a PLACE_AFTER value with the play order it stands for.
+   */
+  private void placeAfter(SQLiteDatabase db, ContentValues values) {
+    if (values.containsKey(PLACE_AFTER)) {
+      long afterId = values.getAsLong(PLACE_AFTER);
+      values.remove(PLACE_AFTER);
+      values.put(Items.PLAY_ORDER, getOrderAfter(db, afterId));
+    }
   }
 
   @Override
   public int delete(Uri uri, String selection, String[] selectionArgs) {
     SQLiteDatabase db = helper.getWritableDatabase();
-    String realSelection = getSelectionFromId(uri, selection);
-    return db.delete(TABLE_NAME, realSelection, selectionArgs);
+    int count = db.delete(TABLE_NAME,
+        DatabaseHelper.getSelection(uri, selection),
+        DatabaseHelper.getSelectionArgs(uri, selectionArgs));
+    if (count > 0) {
+      notifyChange(uri);
+    }
+    return count;
   }
 
   @Override
@@ -80,20 +193,59 @@ public class PlaylistProvider extends ContentProvider {
   @Override
   public Uri insert(Uri uri, ContentValues values) {
     SQLiteDatabase db = helper.getWritableDatabase();
-    if (!values.containsKey(Items.PLAY_ORDER)) {
-      values.put(Items.PLAY_ORDER, getMax(helper) + 1);
+    db.beginTransaction();
+    try {
+      putDurationSeconds(values);
+      if (values.containsKey(PLACE_AFTER)) {
+        placeAfter(db, values);
+      } else if (!values.containsKey(Items.PLAY_ORDER)) {
+        values.put(Items.PLAY_ORDER, getNextOrder());
+      }
+      long id = db.insert(TABLE_NAME, Items.NAME, values);
+      db.setTransactionSuccessful();
+      Uri inserted = ContentUris.withAppendedId(uri, id);
+      notifyChange(inserted);
+      return inserted;
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  /**
+   * Appends all the entries in one transaction, giving those without a play
+   * order consecutive orders after the current end of the playlist.
+   */
+  @Override
+  public int bulkInsert(Uri uri, ContentValues[] values) {
+    SQLiteDatabase db = helper.getWritableDatabase();
+    db.beginTransaction();
+    try {
+      int order = getNextOrder();
+      int count = 0;
+      for (ContentValues entry : values) {
+        putDurationSeconds(entry);
+        if (!entry.containsKey(Items.PLAY_ORDER)) {
+          entry.put(Items.PLAY_ORDER, order);
+          order += ORDER_GAP;
+        }
+        if (db.insert(TABLE_NAME, Items.NAME, entry) >= 0) {
+          count++;
+        }
+      }
+      db.setTransactionSuccessful();
+      if (count > 0) {
+        notifyChange(uri);
+      }
+      return count;
+    } finally {
+      db.endTransaction();
     }
-    long id = db.insert(TABLE_NAME, Items.NAME, values);
-    return ContentUris.withAppendedId(uri, id);
   }
 
   @Override
   public boolean onCreate() {
+    // The database is opened, and upgraded if need be, on first use.
     helper = new PlaylistHelper(getContext());
-
-    // Always try to upgrade, due to upgrade problems on some devices
-    helper.onUpgrade(helper.getWritableDatabase(), 3, 4);
-
     return true;
   }
 
@@ -101,58 +253,332 @@ public class PlaylistProvider extends ContentProvider {
   public Cursor query(Uri uri, String[] projection, String selection,
                       String[] selectionArgs, String sortOrder) {
     SQLiteDatabase db = helper.getWritableDatabase();
-    String realSelection = getSelectionFromId(uri, selection);
+    if (SUMMARY_URI.equals(uri)) {
+      return querySummary(db, projection, selection, selectionArgs);
+    }
+    String realSelection = DatabaseHelper.getSelection(uri, selection);
+    String[] realSelectionArgs =
+        DatabaseHelper.getSelectionArgs(uri, selectionArgs);
 
     Cursor result = db.query(TABLE_NAME, projection, realSelection,
-        selectionArgs, null /* no group by */, null /* no having */, sortOrder);
+        realSelectionArgs, null /* no group by */, null /* no having */,
+        sortOrder);
+    result.setNotificationUri(getContext().getContentResolver(), uri);
     Log.d(LOG_TAG, uri.toString() + ";" + realSelection + ";"
-        + Arrays.toString(selectionArgs));
+        + Arrays.toString(realSelectionArgs));
     return result;
   }
 
+  private Cursor querySummary(SQLiteDatabase db, String[] projection,
+                              String selection, String[] selectionArgs) {
+    if (projection == null) {
+      projection = Summary.COLUMNS;
+    }
+    StringBuilder sql = new StringBuilder("SELECT ");
+    for (int i = 0; i < projection.length; i++) {
+      String expression = Summary.EXPRESSIONS.get(projection[i]);
+      if (expression == null) {
+        throw new IllegalArgumentException("Unknown summary column "
+            + projection[i]);
+      }
+      sql.append(i > 0 ? ", " : "").append(expression).append(" AS ")
+          .append(projection[i]);
+    }
+    sql.append(" FROM ").append(TABLE_NAME);
+    if (selection != null) {
+      sql.append(" WHERE ").append(selection);
+    }
+    Cursor result = db.rawQuery(sql.toString(), selectionArgs);
+    result.setNotificationUri(getContext().getContentResolver(), CONTENT_URI);
+    return result;
+  }
+
+  /**
+   * Fills in DURATION_SECONDS from the text DURATION the API gives.
+   */
+  private static void putDurationSeconds(ContentValues values) {
+    if (values.containsKey(Items.DURATION) &&
+        !values.containsKey(Items.DURATION_SECONDS)) {
+      int seconds = 0;
+      String duration = values.getAsString(Items.DURATION);
+      if (duration != null) {
+        try {
+          seconds = Integer.parseInt(duration.trim());
+        } catch (NumberFormatException e) {
+          Log.w(LOG_TAG, "Unexpected duration " + duration);
+        }
+      }
+      values.put(Items.DURATION_SECONDS, seconds);
+    }
+  }
+
   @Override
   public int update(Uri uri, ContentValues values, String selection,
                     String[] selectionArgs) {
+    int count;
+    if (MOVE_URI.equals(uri)) {
+      count = move(values.getAsInteger(MOVE_FROM),
+          values.getAsInteger(MOVE_TO));
+      uri = CONTENT_URI;
+    } else {
+      count = updateEntries(uri, values, selection, selectionArgs);
+    }
+    if (count > 0 && !isProgressOnly(values)) {
+      notifyChange(uri);
+    }
+    return count;
+  }
+
+  /**
+   * @return Whether the values only record playback or download progress.
+   * Neither is shown, and both are written every few seconds while playing
+   * or downloading, so they are no reason for every observer to requery.
+   */
+  private static boolean isProgressOnly(ContentValues values) {
+    if (values == null || values.size() == 0) {
+      return false;
+    }
+    // keySet() only arrived in Honeycomb.
+    for (Map.Entry<String, Object> value : values.valueSet()) {
+      String key = value.getKey();
+      if (!key.equals(Items.POSITION) && !key.equals(Items.DOWNLOADED_BYTES)
+          && !key.equals(Items.DOWNLOAD_SIZE)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private int updateEntries(Uri uri, ContentValues values, String selection,
+                            String[] selectionArgs) {
+    long id = ContentUris.parseId(uri);
+    if (id != -1 && selection == null && values.size() == 1) {
+      // Marking an entry read and saving where playback got to happen all
+      // the time, so they have statements of their own.
+      if (values.containsKey(Items.IS_READ)) {
+        Boolean isRead = values.getAsBoolean(Items.IS_READ);
+        return updateColumn(id, Items.IS_READ,
+            isRead != null && isRead ? 1 : 0);
+      } else if (values.containsKey(Items.POSITION)) {
+        return updateColumn(id, Items.POSITION,
+            values.getAsInteger(Items.POSITION));
+      }
+    }
+
     SQLiteDatabase db = helper.getWritableDatabase();
-    String realSelection = getSelectionFromId(uri, selection);
+    String realSelection = DatabaseHelper.getSelection(uri, selection);
+    String[] realSelectionArgs =
+        DatabaseHelper.getSelectionArgs(uri, selectionArgs);
     Log.d(LOG_TAG, "update where " + realSelection);
-    return db.update(TABLE_NAME, values, realSelection, selectionArgs);
+    putDurationSeconds(values);
+    if (!values.containsKey(PLACE_AFTER)) {
+      return db.update(TABLE_NAME, values, realSelection, realSelectionArgs);
+    }
+    db.beginTransaction();
+    try {
+      placeAfter(db, values);
+      int count = db.update(TABLE_NAME, values, realSelection,
+          realSelectionArgs);
+      db.setTransactionSuccessful();
+      return count;
+    } finally {
+      db.endTransaction();
+    }
   }
 
-  private String getSelectionFromId(Uri uri, String selection) {
-    long id = ContentUris.parseId(uri);
-    String realSelection = selection == null ? "" : selection + " and ";
-    if (id != -1) {
-      realSelection += Items._ID + " = " + id;
-      return realSelection;
+  private int updateColumn(long id, String column, long value) {
+    SQLiteDatabase db = helper.getWritableDatabase();
+    db.beginTransaction();
+    try {
+      int count = setColumn(id, column, value);
+      db.setTransactionSuccessful();
+      return count;
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  /**
+   * Sets one column of one entry. Call it inside a transaction.
+   *
+   * @return The number of entries changed
+   */
+  private int setColumn(long id, String column, long value) {
+    SQLiteStatement update = helper.getStatement("UPDATE " + TABLE_NAME
+        + " SET " + column + " = ? WHERE " + Items._ID + " = ?");
+    update.bindLong(1, value);
+    update.bindLong(2, id);
+    return helper.executeUpdateDelete(update);
+  }
+
+  /**
+   * Applies the operations in a single transaction, so that a batch of
+   * writes is committed, and seen by readers, all at once.
+   */
+  @Override
+  public ContentProviderResult[] applyBatch(
+      ArrayList<ContentProviderOperation> operations)
+      throws OperationApplicationException {
+    SQLiteDatabase db = helper.getWritableDatabase();
+    db.beginTransaction();
+    try {
+      ContentProviderResult[] results = super.applyBatch(operations);
+      db.setTransactionSuccessful();
+      return results;
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  /**
+   * Moves an entry to a new position in the playlist, clamped to the ends of
+   * the playlist.
+   *
+   * @return The number of entries whose order changed
+   */
+  private int move(int from, int to) {
+    SQLiteDatabase db = helper.getWritableDatabase();
+    db.beginTransaction();
+    try {
+      int count = (int) helper.getStatement("SELECT count(*) FROM "
+          + TABLE_NAME).simpleQueryForLong();
+      if (from < 0 || from >= count) {
+        return 0;
+      }
+      to = Math.max(0, Math.min(to, count - 1));
+      if (from == to) {
+        return 0;
+      }
+      Log.d(LOG_TAG, "move " + from + " to " + to);
+      long id = getIdAt(from);
+      // Moving down, the entries after from shift up one to fill its place.
+      long afterId = from < to ? getIdAt(to) :
+          to == 0 ? -1 : getIdAt(to - 1);
+      setColumn(id, Items.PLAY_ORDER, getOrderAfter(db, afterId));
+      db.setTransactionSuccessful();
+      return 1;
+    } finally {
+      db.endTransaction();
     }
-    return selection;
   }
 
+  private long getIdAt(int position) {
+    SQLiteStatement lookup = helper.getStatement("SELECT " + Items._ID
+        + " FROM " + TABLE_NAME + " ORDER BY " + Items.PLAY_ORDER + ", "
+        + Items._ID + " LIMIT 1 OFFSET ?");
+    lookup.bindLong(1, position);
+    return lookup.simpleQueryForLong();
+  }
+
+  /**
+   * Tells observers about a change NOTIFY_DELAY after it happens, together
+   * with any others made in the meantime, so a burst of edits costs them a
+   * single requery. Changes to more than one URI in that time are reported
+   * as a change to CONTENT_URI.
+   */
+  private void notifyChange(Uri uri) {
+    synchronized (pendingChanges) {
+      if (pendingChanges.isEmpty()) {
+        notifyHandler.postDelayed(notifyTask, NOTIFY_DELAY);
+      }
+      pendingChanges.add(uri);
+    }
+  }
+
+  private final Runnable notifyTask = new Runnable() {
+    @Override
+    public void run() {
+      Uri uri;
+      synchronized (pendingChanges) {
+        if (pendingChanges.isEmpty()) {
+          return;
+        }
+        uri = pendingChanges.size() == 1 ?
+            pendingChanges.iterator().next() : CONTENT_URI;
+        pendingChanges.clear();
+      }
+      getContext().getContentResolver().notifyChange(uri, null);
+    }
+  };
+
   public static class Items implements BaseColumns {
     public static final String NAME = "name";
     public static final String URL = "url";
     public static final String PLAY_ORDER = "play_order";
     public static final String IS_READ = "is_read";
     public static final String STORY_ID = "story_id";
+    // Length in seconds as text, as the API gives it
     public static final String DURATION = "duration";
+    // Filled in from DURATION by the provider, so lengths can be totalled
+    public static final String DURATION_SECONDS = "duration_seconds";
+    public static final String DOWNLOAD_STATE = "download_state";
+    public static final String LOCAL_PATH = "local_path";
+    public static final String DOWNLOADED_BYTES = "downloaded_bytes";
+    public static final String DOWNLOAD_SIZE = "download_size";
+    // Where playback last got to, in milliseconds
+    public static final String POSITION = "position";
     public static final String[] COLUMNS = {NAME, URL, PLAY_ORDER, IS_READ,
-        STORY_ID, DURATION};
+        STORY_ID, DURATION, DOWNLOAD_STATE, LOCAL_PATH, DOWNLOADED_BYTES,
+        DOWNLOAD_SIZE, POSITION, DURATION_SECONDS};
     public static final String[] ALL_COLUMNS = {BaseColumns._ID, NAME, URL,
-        PLAY_ORDER, IS_READ, STORY_ID, DURATION};
+        PLAY_ORDER, IS_READ, STORY_ID, DURATION, DOWNLOAD_STATE, LOCAL_PATH,
+        DOWNLOADED_BYTES, DOWNLOAD_SIZE, POSITION, DURATION_SECONDS};
+
+    // Values of DOWNLOAD_STATE
+    public static final int DOWNLOAD_NONE = 0;
+    public static final int DOWNLOAD_QUEUED = 1;
+    public static final int DOWNLOAD_RUNNING = 2;
+    public static final int DOWNLOAD_COMPLETE = 3;
+    // Ran out of attempts on a transient error; tried again when the
+    // connection changes
+    public static final int DOWNLOAD_FAILED = 4;
+    // Didn't fit in the download quota; tried again when room is made
+    public static final int DOWNLOAD_NO_ROOM = 5;
+    // The server refused it outright; not tried again
+    public static final int DOWNLOAD_REFUSED = 6;
 
     // This class cannot be instantiated
     private Items() {
     }
   }
 
-  protected static class PlaylistHelper extends SQLiteOpenHelper {
+  /**
+   * The columns available from SUMMARY_URI.
+   */
+  public static class Summary {
+    public static final String COUNT = "count";
+    public static final String READ_COUNT = "read_count";
+    // Seconds of audio in all the entries
+    public static final String TOTAL_SECONDS = "total_seconds";
+    // Seconds of audio left in the unread entries, from where each one's
+    // playback got to
+    public static final String REMAINING_SECONDS = "remaining_seconds";
+    public static final String[] COLUMNS = {COUNT, READ_COUNT, TOTAL_SECONDS,
+        REMAINING_SECONDS};
+
+    private static final Map<String, String> EXPRESSIONS =
+        new HashMap<String, String>();
+    static {
+      EXPRESSIONS.put(COUNT, "count(*)");
+      EXPRESSIONS.put(READ_COUNT, "ifnull(sum(" + Items.IS_READ + " != 0), 0)");
+      EXPRESSIONS.put(TOTAL_SECONDS,
+          "ifnull(sum(" + Items.DURATION_SECONDS + "), 0)");
+      EXPRESSIONS.put(REMAINING_SECONDS, "ifnull(sum(CASE WHEN "
+          + Items.IS_READ + " THEN 0 ELSE max(" + Items.DURATION_SECONDS
+          + " - " + Items.POSITION + " / 1000, 0) END), 0)");
+    }
+
+    // This class cannot be instantiated
+    private Summary() {
+    }
+  }
+
+  protected static class PlaylistHelper extends DatabaseHelper {
 
     private static final String LOG_TAG = PlaylistHelper.class.getName();
 
     PlaylistHelper(Context context) {
-      super(context, DATABASE_NAME, null /* no cursor factory */,
-          DATABASE_VERSION);
+      super(context, DATABASE_NAME, DATABASE_VERSION);
     }
 
     @Override
@@ -160,8 +586,13 @@ public class PlaylistProvider extends ContentProvider {
       db.execSQL("CREATE TABLE " + TABLE_NAME + " (" + Items._ID
           + " INTEGER PRIMARY KEY," + Items.NAME + " TEXT," + Items.URL
           + " VARCHAR," + Items.IS_READ + " BOOLEAN," + Items.PLAY_ORDER
-          + " INTEGER," + Items.STORY_ID + " TEXT," + Items.DURATION + " TEXT"
-          + ");");
+          + " INTEGER," + Items.STORY_ID + " TEXT," + Items.DURATION + " TEXT,"
+          + Items.DOWNLOAD_STATE + " INTEGER DEFAULT " + Items.DOWNLOAD_NONE
+          + "," + Items.LOCAL_PATH + " TEXT," + Items.DOWNLOADED_BYTES
+          + " INTEGER DEFAULT 0," + Items.DOWNLOAD_SIZE + " INTEGER DEFAULT -1,"
+          + Items.POSITION + " INTEGER DEFAULT 0," + Items.DURATION_SECONDS
+          + " INTEGER DEFAULT 0);");
+      createIndexes(db);
     }
 
     @SuppressWarnings("unused")
@@ -171,32 +602,68 @@ public class PlaylistProvider extends ContentProvider {
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-
-      // Check if these new columns exist, and add if they don't
-      try {
-        db.query(TABLE_NAME, new String[] {Items.STORY_ID}, null, null, null,
-            null, null);
-      } catch (SQLException e) {
-        // Column doesn't exist - so add it
-        Log.e(LOG_TAG, "Database update - adding StoryId", e);
-        try {
-          db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN "
-              + Items.STORY_ID + " TEXT DEFAULT NULL;");
-        } catch (SQLException ex) {
-          Log.e(LOG_TAG, "", ex);
-        }
+      Log.i(LOG_TAG, "Upgrading playlist from version " + oldVersion + " to "
+          + newVersion);
+      // Each step runs once, when the database is older than its version.
+      // Databases from before version 4 may already have some of the
+      // columns, so columns are only added if they're missing.
+      if (oldVersion < 4) {
+        addColumnIfMissing(db, Items.STORY_ID, "TEXT DEFAULT NULL");
+        addColumnIfMissing(db, Items.DURATION, "TEXT DEFAULT NULL");
+      }
+      if (oldVersion < 5) {
+        addColumnIfMissing(db, Items.DOWNLOAD_STATE,
+            "INTEGER DEFAULT " + Items.DOWNLOAD_NONE);
+        addColumnIfMissing(db, Items.LOCAL_PATH, "TEXT DEFAULT NULL");
+        addColumnIfMissing(db, Items.DOWNLOADED_BYTES, "INTEGER DEFAULT 0");
+        addColumnIfMissing(db, Items.DOWNLOAD_SIZE, "INTEGER DEFAULT -1");
       }
+      if (oldVersion < 6) {
+        addColumnIfMissing(db, Items.POSITION, "INTEGER DEFAULT 0");
+      }
+      if (oldVersion < 7) {
+        // Play orders used to be packed 0, 1, 2, ...
+        spreadOrders(db);
+      }
+      if (oldVersion < 8) {
+        // Some devices have databases stamped version 4 without the
+        // version 4 columns, which used to be repaired on every launch.
+        // Make sure of them here, before one of them is indexed.
+        addColumnIfMissing(db, Items.STORY_ID, "TEXT DEFAULT NULL");
+        addColumnIfMissing(db, Items.DURATION, "TEXT DEFAULT NULL");
+        createIndexes(db);
+      }
+      if (oldVersion < 9) {
+        addColumnIfMissing(db, Items.DURATION_SECONDS, "INTEGER DEFAULT 0");
+        db.execSQL("UPDATE " + TABLE_NAME + " SET " + Items.DURATION_SECONDS
+            + " = CAST(" + Items.DURATION + " AS INTEGER) WHERE "
+            + Items.DURATION + " IS NOT NULL;");
+      }
+    }
+
+    /**
+     * Indexes the columns the playlist is sorted and looked up by.
+     */
+    private void createIndexes(SQLiteDatabase db) {
+      db.execSQL("CREATE INDEX IF NOT EXISTS " + TABLE_NAME + "_order ON "
+          + TABLE_NAME + " (" + Items.PLAY_ORDER + ");");
+      db.execSQL("CREATE INDEX IF NOT EXISTS " + TABLE_NAME + "_unread ON "
+          + TABLE_NAME + " (" + Items.IS_READ + ", " + Items.PLAY_ORDER
+          + ");");
+      db.execSQL("CREATE INDEX IF NOT EXISTS " + TABLE_NAME + "_story ON "
+          + TABLE_NAME + " (" + Items.STORY_ID + ");");
+    }
 
+    private void addColumnIfMissing(SQLiteDatabase db, String column,
+                                    String definition) {
       try {
-        db.query(TABLE_NAME, new String[] {Items.DURATION}, null, null, null,
-            null, null);
+        db.query(TABLE_NAME, new String[] {column}, null, null, null, null,
+            null).close();
       } catch (SQLException e) {
-        // Column doesn't exist - so add it
-        Log.e(PlaylistHelper.class.getName(),
-            "Database update - adding Duration", e);
+        Log.i(LOG_TAG, "Database update - adding " + column);
         try {
-          db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN "
-              + Items.DURATION + " TEXT DEFAULT NULL;");
+          db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + column
+              + " " + definition + ";");
         } catch (SQLException ex) {
           Log.e(LOG_TAG, "", ex);
         }
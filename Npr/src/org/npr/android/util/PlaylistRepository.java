@@ -14,29 +14,33 @@
 
 package org.npr.android.util;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.RemoteException;
 import android.util.Log;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.npr.android.news.DownloadService;
 import org.npr.android.news.Playable;
 import org.npr.android.util.PlaylistProvider.Items;
+import org.npr.android.util.PlaylistProvider.Summary;
 import org.npr.api.Story;
 
 public class PlaylistRepository {
   private final Context applicationContext;
   private final ContentResolver contentResolver;
   private static final String LOG_TAG = PlaylistProvider.class.getName();
-  public static final String PLAYLIST_CHANGED =
-      "org.npr.android.news.PLAYLIST_CHANGE";
-  public static final String PLAYLIST_CHANGE = "PLAYLIST_CHANGE";
-  public static final String PLAYLIST_ITEM_ADDED = "PLAYLIST_ITEM_ADDED";
-  public static final String PLAYLIST_ITEM_REMOVED = "PLAYLIST_ITEM_REMOVED";
-  public static final String PLAYLIST_CLEAR = "PLAYLIST_CLEAR";
 
   public PlaylistRepository(Context applicationContext,
                             ContentResolver contentResolver) {
@@ -44,62 +48,63 @@ public class PlaylistRepository {
     this.contentResolver = contentResolver;
   }
 
-  public long add(Story story) {
+  private static ContentValues toValues(Story story) {
     ContentValues values = new ContentValues();
     values.put(Items.NAME, story.getTitle());
     values.put(Items.URL, story.getPlayableUrl());
     values.put(Items.IS_READ, false);
     values.put(Items.STORY_ID, story.getId());
+    values.put(Items.DOWNLOAD_STATE, Items.DOWNLOAD_QUEUED);
     Story.Audio audio = story.getPlayable();
     if (audio != null) {
       values.put(Items.DURATION, audio.getDuration());
     }
+    return values;
+  }
+
+  public long add(Story story) {
+    ContentValues values = toValues(story);
     Log.d(LOG_TAG, "Adding playlist item to db");
     Uri uri = contentResolver.insert(PlaylistProvider.CONTENT_URI, values);
-
-    Intent playlistChanged = new Intent(PLAYLIST_CHANGED);
-    playlistChanged.putExtra(PLAYLIST_CHANGE, PLAYLIST_ITEM_ADDED);
-    applicationContext.sendBroadcast(playlistChanged);
-
+    startDownloads();
     return ContentUris.parseId(uri);
   }
 
-  public long insert(Story story, int position) {
-
-    Cursor c = contentResolver.query(PlaylistProvider.CONTENT_URI,
-        null, null, null, PlaylistProvider.Items.PLAY_ORDER + " ASC");
-    if (c.moveToFirst()) {
-      do {
-        int order = c.getInt(c.getColumnIndex(PlaylistProvider.Items.PLAY_ORDER));
-        if (order >= position) {
-          long id = (long) c.getInt(c.getColumnIndex(PlaylistProvider
-              .Items._ID));
-          updateItemOrder(id, order + 1);
-        }
-      } while (c.moveToNext());
-    }
-    c.close();
-
-    ContentValues values = new ContentValues();
-    values.put(Items.NAME, story.getTitle());
-    values.put(Items.URL, story.getPlayableUrl());
-    values.put(Items.IS_READ, false);
-    values.put(Items.STORY_ID, story.getId());
-    values.put(Items.PLAY_ORDER, position);
-    Story.Audio audio = story.getPlayable();
-    if (audio != null) {
-      values.put(Items.DURATION, audio.getDuration());
-    }
+  /**
+   * Adds a story to the playlist just after an entry, without renumbering
+   * the entries that follow.
+   *
+   * @param afterId The entry to follow, or -1 for the front of the playlist
+   */
+  public long insertAfter(Story story, long afterId) {
+    ContentValues values = toValues(story);
+    values.put(PlaylistProvider.PLACE_AFTER, afterId);
     Log.d(LOG_TAG, "Adding playlist item to db");
     Uri uri = contentResolver.insert(PlaylistProvider.CONTENT_URI, values);
-
-    Intent playlistChanged = new Intent(PLAYLIST_CHANGED);
-    playlistChanged.putExtra(PLAYLIST_CHANGE, PLAYLIST_ITEM_ADDED);
-    applicationContext.sendBroadcast(playlistChanged);
-
+    startDownloads();
     return ContentUris.parseId(uri);
   }
 
+  /**
+   * Appends stories to the playlist in a single transaction.
+   *
+   * @return The number of stories added
+   */
+  public int addAll(List<Story> stories) {
+    if (stories.isEmpty()) {
+      return 0;
+    }
+    ContentValues[] values = new ContentValues[stories.size()];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = toValues(stories.get(i));
+    }
+    Log.d(LOG_TAG, "Adding " + values.length + " playlist items to db");
+    int count = contentResolver.bulkInsert(PlaylistProvider.CONTENT_URI,
+        values);
+    startDownloads();
+    return count;
+  }
+
   public void markAsRead(long id) {
     Log.d(LOG_TAG, "Item with id " + id + " is being marked as read.");
     Uri update = ContentUris.withAppendedId(PlaylistProvider.CONTENT_URI, id);
@@ -108,6 +113,97 @@ public class PlaylistRepository {
     contentResolver.update(update, values, null, null);
   }
 
+  /**
+   * @return Where playback of the entry last got to, in milliseconds
+   */
+  public int getPosition(long id) {
+    Uri uri = ContentUris.withAppendedId(PlaylistProvider.CONTENT_URI, id);
+    Cursor c = contentResolver.query(uri, new String[] {Items.POSITION},
+        null, null, null);
+    int position = c.moveToFirst() ? c.getInt(0) : 0;
+    c.close();
+    return position;
+  }
+
+  /**
+   * Stores the playback positions of several entries, keyed by entry id, in
+   * one transaction. Positions aren't shown in the playlist, so observers
+   * aren't notified.
+   */
+  public void savePositions(Map<Long, Integer> positions) {
+    ArrayList<ContentProviderOperation> operations =
+        new ArrayList<ContentProviderOperation>(positions.size());
+    for (Map.Entry<Long, Integer> entry : positions.entrySet()) {
+      Uri update = ContentUris.withAppendedId(PlaylistProvider.CONTENT_URI,
+          entry.getKey());
+      operations.add(ContentProviderOperation.newUpdate(update)
+          .withValue(Items.POSITION, entry.getValue()).build());
+    }
+    try {
+      contentResolver.applyBatch(
+          PlaylistProvider.CONTENT_URI.getAuthority(), operations);
+    } catch (RemoteException e) {
+      Log.e(LOG_TAG, "Couldn't save playback positions", e);
+    } catch (OperationApplicationException e) {
+      Log.e(LOG_TAG, "Couldn't save playback positions", e);
+    }
+  }
+
+  /**
+   * Lets the download service pick up newly queued entries. It decides for
+   * itself whether the network and power conditions allow a download now.
+   */
+  private void startDownloads() {
+    startDownloads(false);
+  }
+
+  /**
+   * @param roomMade Whether downloads were just deleted, so entries that
+   *                 didn't fit in the quota may fit now
+   */
+  private void startDownloads(boolean roomMade) {
+    Intent intent = new Intent(applicationContext, DownloadService.class);
+    intent.setAction(DownloadService.SERVICE_CHECK_QUEUE);
+    intent.putExtra(DownloadService.EXTRA_RETRY_NO_ROOM, roomMade);
+    applicationContext.startService(intent);
+  }
+
+  /**
+   * @return The downloaded audio for a playlist entry, or null if it has not
+   * been downloaded
+   */
+  public File getDownloadedFile(long id) {
+    Uri uri = ContentUris.withAppendedId(PlaylistProvider.CONTENT_URI, id);
+    Cursor c = contentResolver.query(uri, new String[] {Items.LOCAL_PATH},
+        Items.DOWNLOAD_STATE + " = ?",
+        new String[] {Integer.toString(Items.DOWNLOAD_COMPLETE)}, null);
+    File file = null;
+    if (c.moveToFirst() && c.getString(0) != null) {
+      file = new File(c.getString(0));
+    }
+    c.close();
+    return file != null && file.exists() ? file : null;
+  }
+
+  /**
+   * Deletes downloaded and partially downloaded audio for the entries
+   * matching the selection. A transfer still in progress notices its entry
+   * is gone and discards its own partial file.
+   */
+  private void deleteDownloads(String selection, String[] selectionArgs) {
+    Cursor c = contentResolver.query(PlaylistProvider.CONTENT_URI,
+        new String[] {Items._ID, Items.LOCAL_PATH}, selection, selectionArgs,
+        null);
+    while (c.moveToNext()) {
+      if (c.getString(1) != null) {
+        new File(c.getString(1)).delete();
+      }
+      DownloadService.getPartialFile(applicationContext, c.getLong(0))
+          .delete();
+    }
+    c.close();
+  }
+
   private PlaylistEntry retrievePlaylistItem(String selection,
                                              String[] selectionArgs, String sort) {
     Cursor c = contentResolver.query(PlaylistProvider.CONTENT_URI,
@@ -129,23 +225,22 @@ public class PlaylistRepository {
     return null;
   }
 
+  private int getSummary(String column) {
+    Cursor c = contentResolver.query(PlaylistProvider.SUMMARY_URI,
+        new String[] {column}, null, null, null);
+    try {
+      return c.moveToFirst() ? c.getInt(0) : 0;
+    } finally {
+      c.close();
+    }
+  }
+
   public int getItemCount() {
-    Cursor c = contentResolver.query(PlaylistProvider.CONTENT_URI, null,
-        null, null, null);
-    int count = c.getCount();
-    c.close();
-    return count;
+    return getSummary(Summary.COUNT);
   }
 
   public int getReadCount() {
-    String selection = PlaylistProvider.Items.IS_READ + " = ?";
-    String[] selectionArgs = new String[1];
-    selectionArgs[0] = "1";
-    Cursor c = contentResolver.query(PlaylistProvider.CONTENT_URI, null,
-        selection, selectionArgs, null);
-    int count = c.getCount();
-    c.close();
-    return count;
+    return getSummary(Summary.READ_COUNT);
   }
 
   public PlaylistEntry getPlaylistItemFromId(long id) {
@@ -185,7 +280,7 @@ public class PlaylistRepository {
 
   public Playable getPreviousEntry(long id) {
     PlaylistEntry entry = getPlaylistItemFromId(id);
-    if (entry == null || entry.playOrder == 0) {
+    if (entry == null) {
       return null;
     }
 
@@ -213,7 +308,7 @@ public class PlaylistRepository {
     selectionArgs[0] = Integer.toString(entry.playOrder);
     String sort = PlaylistProvider.Items.PLAY_ORDER + " asc";
     PlaylistEntry playlistEntry = retrievePlaylistItem(selection,
-        selectionArgs, null);
+        selectionArgs, sort);
     if (playlistEntry == null) {
       return null;
     } else {
@@ -221,67 +316,51 @@ public class PlaylistRepository {
     }
   }
 
-  private void updateItemOrder(long id, int newOrder) {
+  /**
+   * Moves an entry to just after another, or to the front of the playlist
+   * for -1. Only the moved entry is written.
+   */
+  public void moveAfter(long id, long afterId) {
+    if (id == afterId) {
+      return;
+    }
     Uri update = ContentUris.withAppendedId(PlaylistProvider.CONTENT_URI, id);
     ContentValues values = new ContentValues();
-    values.put(Items.PLAY_ORDER, newOrder);
+    values.put(PlaylistProvider.PLACE_AFTER, afterId);
     contentResolver.update(update, values, null, null);
-    applicationContext.sendBroadcast(new Intent(PLAYLIST_CHANGED));
   }
 
-  synchronized public void move(int from, int to) {
-    Cursor c = contentResolver.query(PlaylistProvider.CONTENT_URI,
-        null, null, null, PlaylistProvider.Items.PLAY_ORDER + " ASC");
-    int itemCt = c.getCount();
-    if (from < 0 || from >= itemCt || from == to) {
+  /**
+   * Moves the entry at one position in the playlist to another, as when it
+   * is dragged. Only the moved entry is written.
+   */
+  public void move(int from, int to) {
+    if (from == to) {
       return;
     }
-
-    if (to < 0) {
-      to = 0;
-    } else if (to >= itemCt) {
-      to = itemCt - 1;
-    }
-
-    if (c.moveToFirst()) {
-      do {
-        long id = (long) c.getInt(c.getColumnIndex(PlaylistProvider
-            .Items._ID));
-        int order = c.getInt(c.getColumnIndex(PlaylistProvider.Items.PLAY_ORDER));
-        if (order == from) {
-          updateItemOrder(id, to);
-        } else {
-          if ((order >= from && order <= to) ||
-              (order >= to && order <= from)) {
-            updateItemOrder(id, from > to ? order + 1 : order - 1);
-          }
-        }
-      } while (c.moveToNext());
-    }
-    c.close();
+    ContentValues values = new ContentValues();
+    values.put(PlaylistProvider.MOVE_FROM, from);
+    values.put(PlaylistProvider.MOVE_TO, to);
+    contentResolver.update(PlaylistProvider.MOVE_URI, values, null, null);
   }
 
   public void clearAll() {
+    deleteDownloads(null, null);
     contentResolver.delete(PlaylistProvider.CONTENT_URI, null, null);
-    Intent playlistChanged = new Intent(PLAYLIST_CHANGED);
-    playlistChanged.putExtra(PLAYLIST_CHANGE, PLAYLIST_CLEAR);
-    applicationContext.sendBroadcast(playlistChanged);
   }
 
   public void clearPlayed() {
+    deleteDownloads(Items.IS_READ + "=1", null);
     contentResolver.delete(PlaylistProvider.CONTENT_URI,
         Items.IS_READ + "=1", null);
-    Intent playlistChanged = new Intent(PLAYLIST_CHANGED);
-    playlistChanged.putExtra(PLAYLIST_CHANGE, PLAYLIST_CLEAR);
-    applicationContext.sendBroadcast(playlistChanged);
+    startDownloads(true);
   }
 
   public void delete(PlaylistEntry entry) {
+    deleteDownloads(Items._ID + "=?", new String[]{String.valueOf(entry.id)});
     contentResolver.delete(PlaylistProvider.CONTENT_URI,
         Items._ID + "=?", new String[]{String.valueOf(entry.id)});
-    Intent playlistChanged = new Intent(PLAYLIST_CHANGED);
-    playlistChanged.putExtra(PLAYLIST_CHANGE, PLAYLIST_ITEM_REMOVED);
-    applicationContext.sendBroadcast(playlistChanged);
+    startDownloads(true);
   }
 
   public boolean isFirstEntry(String id) {
@@ -0,0 +1,144 @@
+// Copyright 2012 NPR
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.npr.android.util;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+
+import org.npr.api.HttpHelper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Hashtable;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Turns a .pls or .m3u playlist URL into the stream URLs it lists. The
+ * playlist is parsed as it downloads, playlists that point at further
+ * playlists are followed, and the result is cached for a while so that
+ * returning to a station doesn't cost another round trip.
+ */
+public class PlaylistResolver {
+  private static final String LOG_TAG = PlaylistResolver.class.getName();
+
+  private static final int MAX_DEPTH = 3;
+  private static final long CACHE_LIFETIME = 10 * 60 * 1000; // 10 minutes
+
+  private static class ResolvedEntry {
+    public final List<String> urls;
+    public final long expiration;
+
+    public ResolvedEntry(List<String> urls) {
+      this.urls = urls;
+      this.expiration = System.currentTimeMillis() + CACHE_LIFETIME;
+    }
+
+    public boolean isExpired() {
+      return expiration < System.currentTimeMillis();
+    }
+  }
+
+  private static final Hashtable<String, ResolvedEntry> resolvedCache =
+      new Hashtable<String, ResolvedEntry>();
+
+  private final Context context;
+
+  public PlaylistResolver(Context context) {
+    this.context = context;
+  }
+
+  /**
+   * @return The stream URLs the playlist resolves to, in play order. The
+   * list belongs to the caller and may be modified.
+   * @throws IOException if the playlist could not be downloaded or read to
+   * its end
+   */
+  public List<String> resolve(String playlistUrl) throws IOException {
+    ResolvedEntry entry = resolvedCache.get(playlistUrl);
+    if (entry != null && !entry.isExpired()) {
+      Log.d(LOG_TAG, "Using cached resolution of " + playlistUrl);
+      return new LinkedList<String>(entry.urls);
+    }
+
+    List<String> urls = new LinkedList<String>();
+    boolean isComplete = resolve(playlistUrl, 0, urls);
+    // A nested playlist that failed may work next time, so only a full
+    // resolution is kept.
+    if (isComplete && urls.size() > 0) {
+      resolvedCache.put(playlistUrl, new ResolvedEntry(urls));
+    }
+    return new LinkedList<String>(urls);
+  }
+
+  /**
+   * @return false if a nested playlist couldn't be resolved and was skipped
+   */
+  private boolean resolve(String playlistUrl, int depth, List<String> urls)
+      throws IOException {
+    Log.d(LOG_TAG, "Resolving " + playlistUrl);
+    InputStream stream = HttpHelper.download(playlistUrl, context);
+    if (stream == null) {
+      throw new IOException("Unable to download playlist " + playlistUrl);
+    }
+
+    // The parsers read from the response as it arrives and close it.
+    PlaylistParser parser;
+    if (isPls(playlistUrl)) {
+      parser = new PlsParser(stream);
+    } else {
+      parser = new M3uParser(stream, playlistUrl);
+    }
+
+    boolean isComplete = true;
+    for (String url : parser.getUrls()) {
+      if (isPlaylist(url) && depth < MAX_DEPTH) {
+        try {
+          isComplete &= resolve(url, depth + 1, urls);
+        } catch (IOException e) {
+          // One bad nested playlist shouldn't sink the rest.
+          Log.w(LOG_TAG, "Skipping nested playlist " + url, e);
+          isComplete = false;
+        }
+      } else {
+        urls.add(url);
+      }
+    }
+    return isComplete;
+  }
+
+  private static String getPath(String url) {
+    String path = Uri.parse(url).getPath();
+    return path == null ? "" : path.toLowerCase();
+  }
+
+  private static boolean isPls(String url) {
+    return getPath(url).endsWith(".pls");
+  }
+
+  /**
+   * @return true for .pls and .m3u playlists. HLS (.m3u8) playlists list
+   * media segments, not stations, so they are not resolved here.
+   */
+  public static boolean isPlaylist(String url) {
+    String path = getPath(url);
+    return path.endsWith(".pls") || path.endsWith(".m3u");
+  }
+
+  public static void clearCache() {
+    resolvedCache.clear();
+  }
+}
@@ -14,37 +14,50 @@
 
 package org.npr.android.util;
 
+import android.util.Log;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.util.LinkedList;
 import java.util.List;
 
 public class PlsParser implements PlaylistParser {
+  private static final String LOG_TAG = PlsParser.class.getName();
   private final BufferedReader reader;
 
   public PlsParser(File file) throws FileNotFoundException {
-    this.reader = new BufferedReader(new FileReader(file), 1024);
+    this(new FileInputStream(file));
+  }
+
+  /**
+   * Reads the playlist straight from a stream, such as an HTTP response.
+   * The stream is closed once the URLs have been read.
+   */
+  public PlsParser(InputStream stream) {
+    this.reader = new BufferedReader(new InputStreamReader(stream), 8192);
   }
 
   @Override
-  public List<String> getUrls() {
+  public List<String> getUrls() throws IOException {
     LinkedList<String> urls = new LinkedList<String>();
-    while (true) {
-      try {
-        String line = reader.readLine();
-        if (line == null) {
-          break;
-        } 
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
         String url = parseLine(line);
         if (url != null && !url.equals("")) {
           urls.add(url);
         }
+      }
+    } finally {
+      try {
+        reader.close();
       } catch (IOException e) {
-        e.printStackTrace();
+        Log.w(LOG_TAG, "Error closing playlist", e);
       }
     }
     return urls;
@@ -0,0 +1,84 @@
+// Copyright 2012 NPR
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.npr.android.news;
+
+import android.test.AndroidTestCase;
+
+public class BandwidthEstimatorTest extends AndroidTestCase {
+  private static final String[] URLS = {"http://example.com/high",
+      "http://example.com/low", "http://example.com/mid"};
+  private static final int[] KBPS = {128, 32, 64};
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    BandwidthEstimator.reset();
+  }
+
+  public void testShouldChooseLowestBeforeAnySample() {
+    assertEquals(-1, BandwidthEstimator.getEstimate(false));
+    assertEquals(1, BandwidthEstimator.choose(URLS, KBPS, 0, false));
+  }
+
+  public void testShouldChooseHighestSustainable() {
+    // 64 kbps needs 12000 B/s with headroom; 128 kbps needs 24000.
+    BandwidthEstimator.addSample(false, 20000);
+    assertEquals(2, BandwidthEstimator.choose(URLS, KBPS, 0, false));
+    // The other route hasn't been sampled.
+    assertEquals(1, BandwidthEstimator.choose(URLS, KBPS, 0, true));
+  }
+
+  public void testShouldFallBackToLowestWhenNoneSustainable() {
+    BandwidthEstimator.addSample(false, 1000);
+    assertEquals(1, BandwidthEstimator.choose(URLS, KBPS, 0, false));
+  }
+
+  public void testShouldRespectCeiling() {
+    BandwidthEstimator.addSample(false, 1000000);
+    assertEquals(0, BandwidthEstimator.choose(URLS, KBPS, 0, false));
+    assertEquals(2, BandwidthEstimator.choose(URLS, KBPS, 64, false));
+    assertEquals(-1, BandwidthEstimator.choose(URLS, KBPS, 16, false));
+  }
+
+  public void testShouldSkipUnknownBitrates() {
+    BandwidthEstimator.addSample(false, 1000000);
+    int[] kbps = {0, 32, 0};
+    assertEquals(1, BandwidthEstimator.choose(URLS, kbps, 0, false));
+    assertEquals(-1,
+        BandwidthEstimator.choose(URLS, new int[3], 0, false));
+  }
+
+  public void testShouldPreferAnnouncedBitrate() {
+    assertEquals(128, BandwidthEstimator.getBitrate(URLS[0], 128));
+    assertEquals(0, BandwidthEstimator.getBitrate(URLS[0], 0));
+    BandwidthEstimator.setBitrate(URLS[0], 24);
+    assertEquals(24, BandwidthEstimator.getBitrate(URLS[0], 128));
+    // Now the lowest
+    assertEquals(0, BandwidthEstimator.choose(URLS, KBPS, 0, false));
+  }
+
+  public void testShouldStepDownToNextLowerBitrate() {
+    assertEquals(2, BandwidthEstimator.stepDown(URLS, KBPS, URLS[0]));
+    assertEquals(1, BandwidthEstimator.stepDown(URLS, KBPS, URLS[2]));
+    assertEquals(-1, BandwidthEstimator.stepDown(URLS, KBPS, URLS[1]));
+  }
+
+  public void testShouldNotStepDownFromUnknownBitrate() {
+    assertEquals(-1, BandwidthEstimator.stepDown(URLS, new int[] {0, 32, 64},
+        URLS[0]));
+    assertEquals(-1,
+        BandwidthEstimator.stepDown(URLS, KBPS, "http://example.com/other"));
+  }
+}
@@ -0,0 +1,81 @@
+// Copyright 2012 NPR
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.npr.android.news;
+
+import android.test.AndroidTestCase;
+
+import org.npr.android.util.PlaylistResolver;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+public class DownloadServiceTest extends AndroidTestCase {
+
+  /**
+   * Resolves every playlist to the same URLs, without the network.
+   */
+  private class FixedResolver extends PlaylistResolver {
+    private final List<String> urls;
+    private int resolveCount = 0;
+
+    private FixedResolver(String... urls) {
+      super(getContext());
+      this.urls = Arrays.asList(urls);
+    }
+
+    @Override
+    public List<String> resolve(String playlistUrl) {
+      resolveCount++;
+      return new LinkedList<String>(urls);
+    }
+  }
+
+  public void testShouldDownloadAudioUrlAsIs() throws IOException {
+    FixedResolver resolver = new FixedResolver("http://example.com/b.mp3");
+    assertEquals("http://example.com/a.mp3",
+        DownloadService.getMediaUrl("http://example.com/a.mp3", resolver));
+    assertEquals(0, resolver.resolveCount);
+  }
+
+  public void testShouldDownloadAudioListedByPlaylist() throws IOException {
+    FixedResolver resolver = new FixedResolver("http://example.com/a.mp3",
+        "http://example.com/b.mp3");
+    assertEquals("http://example.com/a.mp3",
+        DownloadService.getMediaUrl("http://example.com/story.m3u",
+            resolver));
+    assertEquals("http://example.com/a.mp3",
+        DownloadService.getMediaUrl("http://example.com/story.pls",
+            resolver));
+  }
+
+  public void testShouldFailOnPlaylistWithoutAudio() {
+    try {
+      DownloadService.getMediaUrl("http://example.com/story.m3u",
+          new FixedResolver());
+      fail("An empty playlist has nothing to download");
+    } catch (IOException e) {
+      // This is the ideal behavior
+    }
+    try {
+      DownloadService.getMediaUrl("http://example.com/story.m3u",
+          new FixedResolver("http://example.com/deeper.m3u"));
+      fail("A playlist file should never be saved as the download");
+    } catch (IOException e) {
+      // This is the ideal behavior
+    }
+  }
+}
@@ -0,0 +1,96 @@
+// Copyright 2012 NPR
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package org.npr.android.news;
+
+import android.test.AndroidTestCase;
+
+import java.io.IOException;
+
+/**
+ * Tests for the read-ahead buffer used by the StreamProxy.
+ */
+public class StreamBufferTest extends AndroidTestCase {
+
+  public void testShouldReadBytesInOrderAcrossWrapAround() throws Exception {
+    StreamBuffer buffer = new StreamBuffer(8);
+    byte[] out = new byte[8];
+
+    buffer.write(new byte[] {1, 2, 3, 4, 5, 6}, 0, 6);
+    assertEquals(6, buffer.read(out, 0, 6, 1));
+
+    buffer.write(new byte[] {7, 8, 9, 10}, 0, 4);
+    assertEquals(4, buffer.available());
+    int read = buffer.read(out, 0, 4, 1);
+    read += buffer.read(out, read, 4 - read, 1);
+    assertEquals(4, read);
+    assertEquals(7, out[0]);
+    assertEquals(10, out[3]);
+  }
+
+  public void testShouldReturnEndOfStreamAfterFinish() throws Exception {
+    StreamBuffer buffer = new StreamBuffer(8);
+    buffer.write(new byte[] {1, 2}, 0, 2);
+    buffer.finish(null);
+
+    byte[] out = new byte[8];
+    assertEquals(2, buffer.read(out, 0, 8, 4));
+    assertEquals(-1, buffer.read(out, 0, 8, 4));
+    assertEquals(0, buffer.getUnderrunCount());
+  }
+
+  public void testShouldRethrowUpstreamErrorOnceDrained() throws Exception {
+    StreamBuffer buffer = new StreamBuffer(8);
+    buffer.finish(new IOException("upstream gone"));
+
+    try {
+      buffer.read(new byte[8], 0, 8, 4);
+      fail("Expected the upstream error to reach the reader");
+    } catch (IOException e) {
+      assertEquals("upstream gone", e.getMessage());
+    }
+  }
+
+  public void testShouldCountUnderrunWhenReaderOutrunsWriter()
+      throws Exception {
+    final StreamBuffer buffer = new StreamBuffer(8);
+    Thread writer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(200);
+          buffer.write(new byte[] {1, 2, 3, 4}, 0, 4);
+          buffer.finish(null);
+        } catch (Exception e) {
+          fail(e.getMessage());
+        }
+      }
+    });
+    writer.start();
+
+    assertEquals(4, buffer.read(new byte[8], 0, 8, 4));
+    assertEquals(1, buffer.getUnderrunCount());
+    writer.join();
+  }
+
+  public void testShouldFailWriterWhenReaderCloses() throws Exception {
+    StreamBuffer buffer = new StreamBuffer(2);
+    buffer.close();
+    try {
+      buffer.write(new byte[] {1, 2, 3}, 0, 3);
+      fail("Writer should not block on a closed buffer");
+    } catch (IOException e) {
+      // This is the expected behavior
+    }
+  }
+}
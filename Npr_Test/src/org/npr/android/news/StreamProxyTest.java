@@ -13,15 +13,23 @@
 // limitations under the License.
 package org.npr.android.news;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.lang.Thread.UncaughtExceptionHandler;
 import java.net.InetAddress;
+import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
 
 import android.test.AndroidTestCase;
 import android.util.Log;
 
+import org.npr.api.HttpHelper;
+
 /**
  * A collection of test for the StreamProxy class.
  * 
@@ -128,9 +136,177 @@ public class StreamProxyTest extends AndroidTestCase {
     }
   }
 
+  public void testShouldRejectErrorStatusOnResume() {
+    int[] statuses = {404, 416, 500, 503};
+    for (int status : statuses) {
+      try {
+        StreamProxy.checkResumeResponse(status, "text/plain", 100, 1000,
+            5000);
+        fail("Status " + status + " should not be spliced into the stream");
+      } catch (IOException e) {
+        // This is the ideal behavior
+      }
+    }
+  }
+
+  public void testShouldRejectErrorStatusOnLiveStreamReconnect() {
+    try {
+      StreamProxy.checkResumeResponse(502, "audio/mpeg", -1, 0, -1);
+      fail("A live stream should not resume from an error response");
+    } catch (IOException e) {
+      // This is the ideal behavior
+    }
+  }
+
+  public void testShouldRejectHtmlOnLiveStreamReconnect() {
+    try {
+      StreamProxy.checkResumeResponse(200, "text/html; charset=utf-8", -1, 0,
+          -1);
+      fail("An HTML page should not be relayed as audio");
+    } catch (IOException e) {
+      // This is the ideal behavior
+    }
+  }
+
+  public void testShouldResumePartialContent() throws IOException {
+    assertFalse(StreamProxy.checkResumeResponse(206, "audio/mpeg", 4000,
+        1000, 5000));
+    assertFalse(StreamProxy.checkResumeResponse(200, "audio/mpeg", -1, 0,
+        -1));
+  }
+
+  public void testShouldSkipWhenRangeIgnored() throws IOException {
+    assertTrue(StreamProxy.checkResumeResponse(200, "audio/mpeg", 5000,
+        1000, 5000));
+    try {
+      StreamProxy.checkResumeResponse(200, "audio/mpeg", 300, 1000, 5000);
+      fail("A different file should not be spliced into the stream");
+    } catch (IOException e) {
+      // This is the ideal behavior
+    }
+  }
+
+  public void testShouldEndOnlyFilesAtCleanEof() {
+    assertTrue(StreamProxy.isEndOfStream(false, 5000, 5000));
+    assertTrue(StreamProxy.isEndOfStream(false, 5000, -1));
+    assertFalse("A file cut short should be resumed",
+        StreamProxy.isEndOfStream(false, 3000, 5000));
+    assertFalse("A live stream should be reconnected",
+        StreamProxy.isEndOfStream(true, 5000, -1));
+  }
+
+  /*
+   * A story sent chunked has no length to check against, so the end of its
+   * body is the end of the story, not a dropped connection to resume.
+   */
+  public void testShouldEndFileOfUnknownLengthAtCleanEof() throws Exception {
+    byte[] body = new byte[20000];
+    for (int i = 0; i < body.length; i++) {
+      body[i] = (byte) ('a' + i % 26);
+    }
+    ChunkedServer server = new ChunkedServer(body);
+    server.start();
+    // Go straight to the test server rather than through Privoxy.
+    String proxyHost = HttpHelper.proxyHost;
+    HttpHelper.proxyHost = null;
+    StreamProxy proxy = new StreamProxy();
+    HttpHelper.proxyHost = proxyHost;
+    proxy.init();
+    proxy.start();
+    Socket socket = null;
+    try {
+      socket = new Socket(
+          InetAddress.getByAddress(new byte[] { 127, 0, 0, 1 }),
+          proxy.getPort());
+      // A story repeated forever never reaches the end.
+      socket.setSoTimeout(10000);
+      OutputStream out = socket.getOutputStream();
+      out.write(("GET /http://127.0.0.1:" + server.getPort() +
+          "/story.mp3 HTTP/1.1\r\n\r\n").getBytes());
+      out.flush();
+
+      ByteArrayOutputStream response = new ByteArrayOutputStream();
+      InputStream in = socket.getInputStream();
+      byte[] buff = new byte[4096];
+      int read;
+      while ((read = in.read(buff)) != -1) {
+        response.write(buff, 0, read);
+      }
+      String relayed = response.toString();
+      String relayedBody = relayed.substring(relayed.indexOf("\n\n") + 2);
+      assertEquals(new String(body), relayedBody);
+      assertEquals(1, server.requests);
+    } finally {
+      if (socket != null) {
+        socket.close();
+      }
+      proxy.stop();
+      server.close();
+    }
+  }
+
   // ------------------
   // Test helpers
 
+  /**
+   * Serves the same body, chunked and so without a length, to every
+   * request.
+   */
+  private static class ChunkedServer extends Thread {
+    private final ServerSocket socket;
+    private final byte[] body;
+    private volatile int requests = 0;
+
+    private ChunkedServer(byte[] body) throws IOException {
+      this.body = body;
+      socket = new ServerSocket(0, 0,
+          InetAddress.getByAddress(new byte[] { 127, 0, 0, 1 }));
+    }
+
+    private int getPort() {
+      return socket.getLocalPort();
+    }
+
+    private void close() throws IOException {
+      socket.close();
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (true) {
+          Socket client = socket.accept();
+          requests++;
+          serve(client);
+        }
+      } catch (IOException e) {
+        // Closed by the test
+      }
+    }
+
+    private void serve(Socket client) throws IOException {
+      BufferedReader reader = new BufferedReader(
+          new InputStreamReader(client.getInputStream()));
+      String line;
+      while ((line = reader.readLine()) != null && line.length() > 0) {
+        // Skip the request headers
+      }
+      OutputStream out = client.getOutputStream();
+      out.write(("HTTP/1.1 200 OK\r\nContent-Type: audio/mpeg\r\n" +
+          "Transfer-Encoding: chunked\r\nConnection: close\r\n\r\n")
+          .getBytes());
+      for (int offset = 0; offset < body.length; offset += 4096) {
+        int length = Math.min(4096, body.length - offset);
+        out.write((Integer.toHexString(length) + "\r\n").getBytes());
+        out.write(body, offset, length);
+        out.write("\r\n".getBytes());
+      }
+      out.write("0\r\n\r\n".getBytes());
+      out.flush();
+      client.close();
+    }
+  }
+
   private class ThreadExceptionHandler implements UncaughtExceptionHandler {
     public boolean caughtNPE = false;
 
@@ -0,0 +1,122 @@
+// Copyright 2012 NPR
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.npr.android.util;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentResolver;
+import android.test.mock.MockContext;
+
+import org.npr.android.util.FavoriteStationsProvider.Items;
+
+import java.io.File;
+
+public class FavoriteStationsProviderTest extends AndroidTestCase {
+  private MockContentResolver resolver;
+  private SQLiteDatabase db;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    db = SQLiteDatabase.create(null);
+    resolver = new MockContentResolver();
+    Context context = new MockContext() {
+      @Override
+      public ContentResolver getContentResolver() {
+        return resolver;
+      }
+
+      @Override
+      public SQLiteDatabase openOrCreateDatabase(String file, int mode,
+                                                 SQLiteDatabase.CursorFactory factory) {
+        return db;
+      }
+
+      @Override
+      public File getDatabasePath(String name) {
+        return null;
+      }
+
+      @Override
+      public int checkUriPermission(Uri uri, String readPermission,
+                                    String writePermission, int pid, int uid, int modeFlags) {
+        return PackageManager.PERMISSION_GRANTED;
+      }
+    };
+    FavoriteStationsProvider provider = new FavoriteStationsProvider();
+    provider.attachInfo(context, null);
+    resolver.addProvider(
+        FavoriteStationsProvider.CONTENT_URI.getAuthority(), provider);
+  }
+
+  private void setPreset(String stationId, String preset) {
+    ContentValues values = new ContentValues();
+    values.put(Items.NAME, "Station " + stationId);
+    values.put(Items.STATION_ID, stationId);
+    values.put(Items.PRESET, preset);
+    resolver.insert(FavoriteStationsProvider.PRESET_URI, values);
+  }
+
+  /**
+   * @return station:preset pairs, ordered by station id
+   */
+  private String getPresets() {
+    Cursor c = resolver.query(FavoriteStationsProvider.CONTENT_URI,
+        new String[] {Items.STATION_ID, Items.PRESET}, null, null,
+        Items.STATION_ID);
+    StringBuilder presets = new StringBuilder();
+    while (c.moveToNext()) {
+      if (presets.length() > 0) {
+        presets.append(",");
+      }
+      presets.append(c.getString(0)).append(":").append(c.getString(1));
+    }
+    c.close();
+    return presets.toString();
+  }
+
+  public void testSetPresetAddsStation() {
+    setPreset("a", "1");
+    assertEquals("a:1", getPresets());
+  }
+
+  public void testSetPresetMovesStation() {
+    setPreset("a", "1");
+    setPreset("a", "4");
+    assertEquals("a:4", getPresets());
+  }
+
+  public void testSetPresetDisplacesHolder() {
+    setPreset("a", "1");
+    setPreset("b", "2");
+    setPreset("c", "1");
+    // a goes to the first open preset
+    assertEquals("a:3,b:2,c:1", getPresets());
+  }
+
+  public void testSetPresetSwapsIntoFreedPreset() {
+    setPreset("a", "1");
+    setPreset("b", "2");
+    setPreset("b", "1");
+    // b gave up 2, so a can have it
+    assertEquals("a:2,b:1", getPresets());
+  }
+}
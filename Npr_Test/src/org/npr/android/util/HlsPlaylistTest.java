@@ -0,0 +1,79 @@
+// Copyright 2012 NPR
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package org.npr.android.util;
+
+import android.test.AndroidTestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+/**
+ * Unit tests for the HLS playlist parser
+ */
+public class HlsPlaylistTest extends AndroidTestCase {
+  private static final String BASE_URL =
+      "http://stream.example.com/live/station.m3u8";
+
+  private HlsPlaylist parse(String playlist) throws IOException {
+    return new HlsPlaylist(new ByteArrayInputStream(playlist.getBytes()),
+        BASE_URL);
+  }
+
+  public void testShouldReadLiveMediaPlaylist() throws IOException {
+    HlsPlaylist playlist = parse("#EXTM3U\n" +
+        "#EXT-X-TARGETDURATION:6\n" +
+        "#EXT-X-MEDIA-SEQUENCE:120\n" +
+        "#EXTINF:6,\nseg120.aac\n" +
+        "#EXTINF:6,\nseg121.aac\n");
+    assertFalse(playlist.isMaster());
+    assertFalse(playlist.isEnded());
+    assertEquals(6, playlist.getTargetDuration());
+    assertEquals(120, playlist.getMediaSequence());
+    assertEquals(122, playlist.getEndSequence());
+    assertEquals("http://stream.example.com/live/seg121.aac",
+        playlist.getSegment(121));
+    assertNull(playlist.getSegment(119));
+    assertNull(playlist.getSegment(122));
+  }
+
+  public void testShouldPickLowestBandwidthVariant() throws IOException {
+    HlsPlaylist playlist = parse("#EXTM3U\n" +
+        "#EXT-X-STREAM-INF:PROGRAM-ID=1,BANDWIDTH=128000\nhigh.m3u8\n" +
+        "#EXT-X-STREAM-INF:PROGRAM-ID=1,BANDWIDTH=32000\nlow.m3u8\n");
+    assertTrue(playlist.isMaster());
+    assertEquals(2, playlist.getVariants().size());
+    assertEquals(32000, playlist.getLowestVariant().bandwidth);
+    assertEquals("http://stream.example.com/live/low.m3u8",
+        playlist.getLowestVariant().url);
+  }
+
+  public void testShouldNoticeEndAndEncryption() throws IOException {
+    HlsPlaylist playlist = parse("#EXTM3U\n" +
+        "#EXT-X-KEY:METHOD=AES-128,URI=\"key\"\n" +
+        "#EXTINF:10,\nhttp://cdn.example.com/a.ts\n" +
+        "#EXT-X-ENDLIST\n");
+    assertTrue(playlist.isEnded());
+    assertTrue(playlist.isEncrypted());
+    assertEquals("http://cdn.example.com/a.ts", playlist.getSegment(0));
+  }
+
+  public void testShouldRejectPlainM3u() {
+    try {
+      parse("http://stream.example.com/\n");
+      fail("Expected an IOException");
+    } catch (IOException e) {
+      // Expected
+    }
+  }
+}
@@ -0,0 +1,84 @@
+// Copyright 2012 NPR
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package org.npr.android.util;
+
+import android.test.AndroidTestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * Unit tests for the M3U parser
+ */
+public class M3uParserTest extends AndroidTestCase {
+
+  private M3uParser parse(String playlist, String baseUrl) {
+    return new M3uParser(new ByteArrayInputStream(playlist.getBytes()),
+        baseUrl);
+  }
+
+  public void testShouldReadExtendedM3uTitles() throws IOException {
+    M3uParser parser = parse("#EXTM3U\n" +
+        "#EXTINF:-1,Morning Edition\n" +
+        "http://stream.example.com/one.mp3\n" +
+        "http://stream.example.com/two.mp3\n", null);
+    List<String> urls = parser.getUrls();
+    List<String> titles = parser.getTitles();
+    assertEquals(2, urls.size());
+    assertEquals("http://stream.example.com/one.mp3", urls.get(0));
+    assertEquals("Morning Edition", titles.get(0));
+    assertNull(titles.get(1));
+  }
+
+  public void testShouldResolveRelativeUrls() throws IOException {
+    M3uParser parser = parse("audio/one.mp3\n/two.mp3\n",
+        "http://stream.example.com/lists/station.m3u");
+    List<String> urls = parser.getUrls();
+    assertEquals("http://stream.example.com/lists/audio/one.mp3",
+        urls.get(0));
+    assertEquals("http://stream.example.com/two.mp3", urls.get(1));
+  }
+
+  public void testShouldSkipCommentsAndBlankLines() throws IOException {
+    M3uParser parser = parse("# comment\n\n   \n" +
+        "  http://stream.example.com/  \r\n", null);
+    List<String> urls = parser.getUrls();
+    assertEquals(1, urls.size());
+    assertEquals("http://stream.example.com/", urls.get(0));
+  }
+
+  public void testShouldFailRatherThanReturnPartialList() {
+    // The connection drops after the first entry.
+    final byte[] playlist = "http://stream.example.com/one.mp3\n".getBytes();
+    InputStream dropped = new InputStream() {
+      private int next = 0;
+
+      @Override
+      public int read() throws IOException {
+        if (next == playlist.length) {
+          throw new IOException("Connection reset");
+        }
+        return playlist[next++];
+      }
+    };
+    try {
+      new M3uParser(dropped, null).getUrls();
+      fail("A playlist cut short should not parse");
+    } catch (IOException e) {
+      assertEquals("Connection reset", e.getMessage());
+    }
+  }
+}
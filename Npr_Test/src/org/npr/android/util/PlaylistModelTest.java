@@ -0,0 +1,62 @@
+// Copyright 2012 NPR
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.npr.android.util;
+
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class PlaylistModelTest extends AndroidTestCase {
+  private static final Set<Long> NONE_READ = new HashSet<Long>();
+
+  private static List<Long> ids(long... ids) {
+    List<Long> list = new ArrayList<Long>();
+    for (long id : ids) {
+      list.add(id);
+    }
+    return list;
+  }
+
+  private static String diff(List<Long> oldIds, List<Long> newIds) {
+    return PlaylistModel.diff(oldIds, NONE_READ, newIds, NONE_READ)
+        .toString();
+  }
+
+  public void testUnchanged() {
+    assertEquals("[]", diff(ids(1, 2, 3), ids(1, 2, 3)));
+  }
+
+  public void testMoveReportsOnlyTheMovedEntry() {
+    // 1 moved from the front to the back
+    assertEquals("[2:1:0>4]", diff(ids(1, 2, 3, 4, 5), ids(2, 3, 4, 5, 1)));
+    // 5 moved from the back to the front
+    assertEquals("[2:5:4>0]", diff(ids(1, 2, 3, 4, 5), ids(5, 1, 2, 3, 4)));
+  }
+
+  public void testInsertAndRemove() {
+    assertEquals("[1:2:1>-1, 0:7:-1>2]",
+        diff(ids(1, 2, 3), ids(1, 3, 7)));
+  }
+
+  public void testRead() {
+    Set<Long> read = new HashSet<Long>(Arrays.asList(2L));
+    assertEquals("[3:2:1>1]",
+        PlaylistModel.diff(ids(1, 2), NONE_READ, ids(1, 2), read).toString());
+  }
+}
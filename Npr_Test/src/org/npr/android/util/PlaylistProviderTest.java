@@ -14,9 +14,14 @@
 
 package org.npr.android.util;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.pm.PackageManager;
+import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
@@ -27,8 +32,10 @@ import android.test.mock.MockContext;
 
 import org.npr.android.util.PlaylistProvider.Items;
 import org.npr.android.util.PlaylistProvider.PlaylistHelper;
+import org.npr.android.util.PlaylistProvider.Summary;
 
 import java.io.File;
+import java.util.ArrayList;
 
 public class PlaylistProviderTest extends AndroidTestCase {
   private PlaylistProvider provider;
@@ -43,7 +50,14 @@ public class PlaylistProviderTest extends AndroidTestCase {
 
   private void setupDb() {
     db = SQLiteDatabase.create(null);
+    final MockContentResolver resolver = new MockContentResolver();
     Context context = new MockContext() {
+      // The provider notifies observers through this
+      @Override
+      public ContentResolver getContentResolver() {
+        return resolver;
+      }
+
       @Override
       public SQLiteDatabase openOrCreateDatabase(String file, int mode,
                                                  SQLiteDatabase.CursorFactory factory) {
@@ -63,7 +77,6 @@ public class PlaylistProviderTest extends AndroidTestCase {
     };
     provider = new PlaylistProvider();
     provider.attachInfo(context, null);
-    MockContentResolver resolver = new MockContentResolver();
     // Create the authority for the URI, by removing the 'content://' and any
     // '/' or path part after that.
     String authority = PlaylistProvider.CONTENT_URI.toString().substring(10);
@@ -157,4 +170,180 @@ public class PlaylistProviderTest extends AndroidTestCase {
     assertEquals(4, DatabaseUtils.queryNumEntries(db,
       PlaylistProvider.TABLE_NAME));
   }
+
+  private String getOrder() {
+    return DatabaseUtils.stringForQuery(db, "SELECT group_concat("
+        + Items.NAME + ", '') FROM (SELECT " + Items.NAME + " FROM "
+        + PlaylistProvider.TABLE_NAME + " ORDER BY " + Items.PLAY_ORDER + ")",
+        null);
+  }
+
+  private int move(int from, int to) {
+    ContentValues values = new ContentValues();
+    values.put(PlaylistProvider.MOVE_FROM, from);
+    values.put(PlaylistProvider.MOVE_TO, to);
+    return getContext().getContentResolver().update(PlaylistProvider.MOVE_URI,
+        values, null, null);
+  }
+
+  public void testMove() {
+    insertRecords();
+
+    assertEquals(1, move(0, 2));
+    assertEquals("BCA", getOrder());
+    assertEquals(1, move(2, 1));
+    assertEquals("BAC", getOrder());
+    // Past the end is clamped to the last entry
+    assertEquals(1, move(1, 10));
+    assertEquals("BCA", getOrder());
+    assertEquals(0, move(5, 0));
+    assertEquals("BCA", getOrder());
+  }
+
+  private long insertAfter(String name, long afterId) {
+    ContentValues values = new ContentValues();
+    values.put(Items.NAME, name);
+    values.put(Items.URL, "http://" + name);
+    values.put(PlaylistProvider.PLACE_AFTER, afterId);
+    Uri uri = getContext().getContentResolver().insert(
+        PlaylistProvider.CONTENT_URI, values);
+    return ContentUris.parseId(uri);
+  }
+
+  public void testInsertAfter() {
+    long a = insertAfter("A", -1);
+    long c = insertAfter("C", a);
+    insertAfter("B", a);
+    insertAfter("D", c);
+    insertAfter("Z", -1);
+    assertEquals("ZABCD", getOrder());
+  }
+
+  public void testInsertAfterRespreadsWhenGapsRunOut() {
+    insertRecords();
+    long a = DatabaseUtils.longForQuery(db, "SELECT " + Items._ID + " FROM "
+        + PlaylistProvider.TABLE_NAME + " WHERE " + Items.NAME + " = 'A'",
+        null);
+
+    // A and B are adjacent, so this spreads the playlist out first
+    insertAfter("X", a);
+    assertEquals("AXBC", getOrder());
+    assertEquals(PlaylistProvider.ORDER_GAP, DatabaseUtils.longForQuery(db,
+        "SELECT " + Items.PLAY_ORDER + " FROM " + PlaylistProvider.TABLE_NAME
+        + " WHERE " + Items.NAME + " = 'B'", null));
+  }
+
+  public void testUpgradeFromVersion4() {
+    db.execSQL("CREATE TABLE " + PlaylistProvider.TABLE_NAME + " ("
+        + Items._ID + " INTEGER PRIMARY KEY," + Items.NAME + " TEXT,"
+        + Items.URL + " VARCHAR," + Items.IS_READ + " BOOLEAN,"
+        + Items.PLAY_ORDER + " INTEGER," + Items.STORY_ID + " TEXT,"
+        + Items.DURATION + " TEXT);");
+    for (int i = 0; i < 3; i++) {
+      db.execSQL("INSERT INTO " + PlaylistProvider.TABLE_NAME + " ("
+          + Items.NAME + ", " + Items.PLAY_ORDER + ", " + Items.DURATION
+          + ") VALUES ('" + (char) ('A' + i) + "', " + i + ", '" + (i * 60)
+          + "')");
+    }
+
+    mockHelper.onUpgrade(db, 4, 9);
+
+    db.query(PlaylistProvider.TABLE_NAME, Items.ALL_COLUMNS, null, null, null,
+        null, null).close();
+    assertEquals("ABC", getOrder());
+    assertEquals(2 * PlaylistProvider.ORDER_GAP, DatabaseUtils.longForQuery(
+        db, "SELECT max(" + Items.PLAY_ORDER + ") FROM "
+        + PlaylistProvider.TABLE_NAME, null));
+    assertEquals(3, DatabaseUtils.longForQuery(db, "SELECT count(*) FROM "
+        + "sqlite_master WHERE type = 'index' AND tbl_name = '"
+        + PlaylistProvider.TABLE_NAME + "'", null));
+    assertEquals(180, DatabaseUtils.longForQuery(db, "SELECT sum("
+        + Items.DURATION_SECONDS + ") FROM " + PlaylistProvider.TABLE_NAME,
+        null));
+  }
+
+  /*
+   * Some devices stamped their databases version 4 without adding the
+   * version 4 columns.
+   */
+  public void testUpgradeRepairsVersion4WithoutItsColumns() {
+    db.execSQL("CREATE TABLE " + PlaylistProvider.TABLE_NAME + " ("
+        + Items._ID + " INTEGER PRIMARY KEY," + Items.NAME + " TEXT,"
+        + Items.URL + " VARCHAR," + Items.IS_READ + " BOOLEAN,"
+        + Items.PLAY_ORDER + " INTEGER);");
+    for (int i = 0; i < 3; i++) {
+      db.execSQL("INSERT INTO " + PlaylistProvider.TABLE_NAME + " ("
+          + Items.NAME + ", " + Items.PLAY_ORDER + ") VALUES ('"
+          + (char) ('A' + i) + "', " + i + ")");
+    }
+
+    mockHelper.onUpgrade(db, 4, 9);
+
+    db.query(PlaylistProvider.TABLE_NAME, Items.ALL_COLUMNS, null, null, null,
+        null, null).close();
+    assertEquals("ABC", getOrder());
+    assertEquals(1, DatabaseUtils.longForQuery(db, "SELECT count(*) FROM "
+        + "sqlite_master WHERE type = 'index' AND name = '"
+        + PlaylistProvider.TABLE_NAME + "_story'", null));
+  }
+
+  public void testBulkInsert() {
+    insertRecords();
+
+    ContentValues[] values = new ContentValues[3];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = new ContentValues();
+      values[i].put(Items.NAME, String.valueOf((char) ('X' + i)));
+      values[i].put(Items.URL, "http://" + i);
+    }
+    assertEquals(3, getContext().getContentResolver().bulkInsert(
+        PlaylistProvider.CONTENT_URI, values));
+    assertEquals("ABCXYZ", getOrder());
+  }
+
+  public void testSummary() {
+    ContentValues values = new ContentValues();
+    values.put(Items.NAME, "A");
+    values.put(Items.DURATION, "90");
+    values.put(Items.IS_READ, true);
+    getContext().getContentResolver().insert(PlaylistProvider.CONTENT_URI,
+        values);
+    values.put(Items.NAME, "B");
+    values.put(Items.DURATION, "300");
+    values.put(Items.IS_READ, false);
+    values.put(Items.POSITION, 60000);
+    getContext().getContentResolver().insert(PlaylistProvider.CONTENT_URI,
+        values);
+
+    Cursor c = getContext().getContentResolver().query(
+        PlaylistProvider.SUMMARY_URI, null, null, null, null);
+    assertTrue(c.moveToFirst());
+    assertEquals(2, c.getInt(c.getColumnIndex(Summary.COUNT)));
+    assertEquals(1, c.getInt(c.getColumnIndex(Summary.READ_COUNT)));
+    assertEquals(390, c.getInt(c.getColumnIndex(Summary.TOTAL_SECONDS)));
+    assertEquals(240, c.getInt(c.getColumnIndex(Summary.REMAINING_SECONDS)));
+    c.close();
+  }
+
+  public void testBatchUpdatesById() throws Exception {
+    insertRecords();
+    Uri a = ContentUris.withAppendedId(PlaylistProvider.CONTENT_URI, 1);
+    Uri b = ContentUris.withAppendedId(PlaylistProvider.CONTENT_URI, 2);
+    ArrayList<ContentProviderOperation> operations =
+        new ArrayList<ContentProviderOperation>();
+    operations.add(ContentProviderOperation.newUpdate(a)
+        .withValue(Items.IS_READ, true).build());
+    operations.add(ContentProviderOperation.newUpdate(b)
+        .withValue(Items.POSITION, 5000).build());
+    ContentProviderResult[] results = getContext().getContentResolver()
+        .applyBatch(PlaylistProvider.CONTENT_URI.getAuthority(), operations);
+
+    assertEquals(1, results[0].count.intValue());
+    assertEquals(1, results[1].count.intValue());
+    assertEquals("1,5000", DatabaseUtils.stringForQuery(db, "SELECT "
+        + "(SELECT " + Items.IS_READ + " FROM " + PlaylistProvider.TABLE_NAME
+        + " WHERE " + Items._ID + " = 1) || ',' || (SELECT " + Items.POSITION
+        + " FROM " + PlaylistProvider.TABLE_NAME + " WHERE " + Items._ID
+        + " = 2)", null));
+  }
 }
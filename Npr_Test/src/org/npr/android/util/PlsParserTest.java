@@ -16,7 +16,6 @@ package org.npr.android.util;
 import android.test.AndroidTestCase;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.List;
@@ -62,7 +61,7 @@ public class PlsParserTest extends AndroidTestCase {
       List<String> playlist = parser.getUrls();
       assertNotNull(playlist);
       assertTrue(playlist.size() == 1);
-    } catch (FileNotFoundException e) {
+    } catch (IOException e) {
       e.printStackTrace();
       fail(e.getMessage());
     }
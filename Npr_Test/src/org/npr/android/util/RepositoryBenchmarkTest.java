@@ -0,0 +1,466 @@
+// Copyright 2012 NPR
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.npr.android.util;
+
+import android.content.ComponentName;
+import android.content.ContentProvider;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.database.Cursor;
+import android.database.DatabaseErrorHandler;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentResolver;
+import android.test.mock.MockContext;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import org.npr.api.Station;
+import org.npr.api.Story;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Times the playlist and favorites repositories against in-memory databases
+ * of 10 to 10,000 entries, logging operations per second and allocations
+ * per operation at each size. Nothing is asserted about speed: an operation
+ * whose cost grows faster than it should shows up in how its numbers change
+ * from one size to the next.
+ *
+ * Allocations come from Debug's per-thread counters, which Dalvik keeps.
+ * The mock resolver calls the providers on the test's thread, so their
+ * allocations are counted too.
+ */
+@LargeTest
+public class RepositoryBenchmarkTest extends AndroidTestCase {
+  private static final String LOG_TAG =
+      RepositoryBenchmarkTest.class.getName();
+
+  private static final int[] SIZES = {10, 100, 1000, 10000};
+  // Operations timed at each size
+  private static final int OPERATIONS = 100;
+  // Playlists cleared at each size; each clear needs a fresh playlist
+  private static final int CLEAR_ROUNDS = 5;
+  // So every run picks the same entries
+  private static final long SEED = 42;
+
+  private final Map<String, SQLiteDatabase> databases =
+      new HashMap<String, SQLiteDatabase>();
+  private MockContentResolver resolver;
+  private Context context;
+  private File downloadDir;
+  private Random random;
+  private long[] playlistIds;
+
+  private interface Operation {
+    void run(int i);
+  }
+
+  /**
+   * Adds up the time and allocations of the timed parts of a run.
+   */
+  private static class Measurement {
+    private final String name;
+    private final int size;
+    private long nanos;
+    private long started;
+    private int operations;
+
+    Measurement(String name, int size) {
+      this.name = name;
+      this.size = size;
+      Debug.resetThreadAllocCount();
+    }
+
+    void start() {
+      Debug.startAllocCounting();
+      started = System.nanoTime();
+    }
+
+    void stop() {
+      nanos += System.nanoTime() - started;
+      Debug.stopAllocCounting();
+      operations++;
+    }
+
+    void report() {
+      Log.i(LOG_TAG, String.format("%s, %d entries: %.0f ops/s, "
+          + "%d allocations/op", name, size, operations * 1e9 / nanos,
+          Debug.getThreadAllocCount() / operations));
+    }
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    downloadDir = getContext().getCacheDir();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    closeDatabases();
+    super.tearDown();
+  }
+
+  private void closeDatabases() {
+    for (SQLiteDatabase db : databases.values()) {
+      db.close();
+    }
+    databases.clear();
+  }
+
+  /**
+   * Starts both providers afresh on empty in-memory databases.
+   */
+  private void openDatabases() {
+    closeDatabases();
+    resolver = new MockContentResolver();
+    context = new MockContext() {
+      @Override
+      public ContentResolver getContentResolver() {
+        return resolver;
+      }
+
+      @Override
+      public SQLiteDatabase openOrCreateDatabase(String file, int mode,
+                                                 SQLiteDatabase.CursorFactory factory) {
+        SQLiteDatabase db = databases.get(file);
+        if (db == null) {
+          db = SQLiteDatabase.create(factory);
+          databases.put(file, db);
+        }
+        return db;
+      }
+
+      @Override
+      public SQLiteDatabase openOrCreateDatabase(String file, int mode,
+                                                 SQLiteDatabase.CursorFactory factory,
+                                                 DatabaseErrorHandler errorHandler) {
+        return openOrCreateDatabase(file, mode, factory);
+      }
+
+      @Override
+      public File getDatabasePath(String name) {
+        return null;
+      }
+
+      @Override
+      public int checkUriPermission(Uri uri, String readPermission,
+                                    String writePermission, int pid, int uid, int modeFlags) {
+        return PackageManager.PERMISSION_GRANTED;
+      }
+
+      // Where the playlist looks for downloads to delete
+      @Override
+      public File getDir(String name, int mode) {
+        return downloadDir;
+      }
+
+      // The playlist asks for downloads whenever an entry is added.
+      @Override
+      public ComponentName startService(Intent service) {
+        return null;
+      }
+    };
+    addProvider(new PlaylistProvider(), PlaylistProvider.CONTENT_URI);
+    addProvider(new FavoriteStationsProvider(),
+        FavoriteStationsProvider.CONTENT_URI);
+    random = new Random(SEED);
+  }
+
+  private void addProvider(ContentProvider provider, Uri uri) {
+    provider.attachInfo(context, null);
+    resolver.addProvider(uri.getAuthority(), provider);
+  }
+
+  private void time(String name, int size, Operation operation) {
+    Measurement measurement = new Measurement(name, size);
+    for (int i = 0; i < OPERATIONS; i++) {
+      measurement.start();
+      operation.run(i);
+      measurement.stop();
+    }
+    measurement.report();
+  }
+
+  private static Story story(int i) {
+    List<Story.Audio.Format> formats = new ArrayList<Story.Audio.Format>();
+    formats.add(new Story.Audio.Format("http://example.com/" + i + ".mp3",
+        null, null));
+    return new Story.StoryBuilder(Integer.toString(i))
+        .withTitle("Story " + i)
+        .withAudio(new Story.Audio(Integer.toString(i), "primary", "300",
+            formats))
+        .build();
+  }
+
+  private static List<Story> stories(int first, int count) {
+    List<Story> stories = new ArrayList<Story>(count);
+    for (int i = first; i < first + count; i++) {
+      stories.add(story(i));
+    }
+    return stories;
+  }
+
+  /**
+   * @return A playlist of the given size, with its entry ids in play order
+   * in playlistIds
+   */
+  private PlaylistRepository openPlaylist(int size) {
+    openDatabases();
+    PlaylistRepository playlist = new PlaylistRepository(context, resolver);
+    playlist.addAll(stories(0, size));
+    Cursor c = resolver.query(PlaylistProvider.CONTENT_URI,
+        new String[] {PlaylistProvider.Items._ID}, null, null,
+        PlaylistProvider.Items.PLAY_ORDER);
+    playlistIds = new long[c.getCount()];
+    for (int i = 0; c.moveToNext(); i++) {
+      playlistIds[i] = c.getLong(0);
+    }
+    c.close();
+    assertEquals(size, playlistIds.length);
+    return playlist;
+  }
+
+  /**
+   * @return Entry ids picked at random, one per operation
+   */
+  private long[] pickPlaylistIds() {
+    long[] ids = new long[OPERATIONS];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = playlistIds[random.nextInt(playlistIds.length)];
+    }
+    return ids;
+  }
+
+  private int[] pickPositions(int size) {
+    int[] positions = new int[OPERATIONS];
+    for (int i = 0; i < positions.length; i++) {
+      positions[i] = random.nextInt(size);
+    }
+    return positions;
+  }
+
+  public void testPlaylistAdd() {
+    for (int size : SIZES) {
+      final PlaylistRepository playlist = openPlaylist(size);
+      final List<Story> stories = stories(size, OPERATIONS);
+      time("Playlist add", size, new Operation() {
+        @Override
+        public void run(int i) {
+          playlist.add(stories.get(i));
+        }
+      });
+    }
+  }
+
+  public void testPlaylistInsertAfter() {
+    for (int size : SIZES) {
+      final PlaylistRepository playlist = openPlaylist(size);
+      final List<Story> stories = stories(size, OPERATIONS);
+      final long[] afterIds = pickPlaylistIds();
+      time("Playlist insert after", size, new Operation() {
+        @Override
+        public void run(int i) {
+          playlist.insertAfter(stories.get(i), afterIds[i]);
+        }
+      });
+    }
+  }
+
+  public void testPlaylistMove() {
+    for (int size : SIZES) {
+      final PlaylistRepository playlist = openPlaylist(size);
+      final int[] from = pickPositions(size);
+      final int[] to = pickPositions(size);
+      time("Playlist move", size, new Operation() {
+        @Override
+        public void run(int i) {
+          playlist.move(from[i], to[i]);
+        }
+      });
+    }
+  }
+
+  public void testPlaylistMarkAsRead() {
+    for (int size : SIZES) {
+      final PlaylistRepository playlist = openPlaylist(size);
+      final long[] ids = pickPlaylistIds();
+      time("Playlist mark as read", size, new Operation() {
+        @Override
+        public void run(int i) {
+          playlist.markAsRead(ids[i]);
+        }
+      });
+    }
+  }
+
+  public void testPlaylistNextEntry() {
+    for (int size : SIZES) {
+      final PlaylistRepository playlist = openPlaylist(size);
+      final long[] ids = pickPlaylistIds();
+      time("Playlist next entry", size, new Operation() {
+        @Override
+        public void run(int i) {
+          playlist.getNextEntry(ids[i]);
+        }
+      });
+    }
+  }
+
+  public void testPlaylistClearPlayed() {
+    ContentValues read = new ContentValues();
+    read.put(PlaylistProvider.Items.IS_READ, true);
+    for (int size : SIZES) {
+      Measurement measurement = new Measurement("Playlist clear played",
+          size);
+      for (int round = 0; round < CLEAR_ROUNDS; round++) {
+        PlaylistRepository playlist = openPlaylist(size);
+        // Half the playlist has been heard.
+        resolver.update(PlaylistProvider.CONTENT_URI, read,
+            PlaylistProvider.Items._ID + " % 2 = 0", null);
+        measurement.start();
+        playlist.clearPlayed();
+        measurement.stop();
+      }
+      measurement.report();
+    }
+  }
+
+  private static Station station(int i) {
+    return new Station.StationBuilder("s" + i)
+        .withName("Station " + i)
+        .withMarketCity("Washington, DC")
+        .withFrequency("90.9")
+        .withBand("FM")
+        .build();
+  }
+
+  private static List<Station> stations(int first, int count) {
+    List<Station> stations = new ArrayList<Station>(count);
+    for (int i = first; i < first + count; i++) {
+      stations.add(station(i));
+    }
+    return stations;
+  }
+
+  /**
+   * @return Favorites of the given size, the first of them on presets
+   */
+  private FavoriteStationsRepository openFavorites(int size) {
+    openDatabases();
+    ContentValues[] values = new ContentValues[size];
+    for (int i = 0; i < size; i++) {
+      Station station = station(i);
+      values[i] = new ContentValues();
+      values[i].put(FavoriteStationsProvider.Items.NAME, station.getName());
+      values[i].put(FavoriteStationsProvider.Items.STATION_ID,
+          station.getId());
+      values[i].put(FavoriteStationsProvider.Items.PRESET,
+          i < FavoriteStationsProvider.MAX_PRESET ?
+              Integer.toString(i + 1) : null);
+    }
+    resolver.bulkInsert(FavoriteStationsProvider.CONTENT_URI, values);
+    return new FavoriteStationsRepository(resolver);
+  }
+
+  private static String preset(int i) {
+    return Integer.toString(i % FavoriteStationsProvider.MAX_PRESET + 1);
+  }
+
+  public void testFavoritesAdd() {
+    for (int size : SIZES) {
+      final FavoriteStationsRepository favorites = openFavorites(size);
+      final List<Station> stations = stations(size, OPERATIONS);
+      time("Favorites add", size, new Operation() {
+        @Override
+        public void run(int i) {
+          favorites.add(stations.get(i), null);
+        }
+      });
+    }
+  }
+
+  public void testFavoritesSetPresetOfNewStation() {
+    for (int size : SIZES) {
+      final FavoriteStationsRepository favorites = openFavorites(size);
+      final List<Station> stations = stations(size, OPERATIONS);
+      time("Favorites set preset of new station", size, new Operation() {
+        @Override
+        public void run(int i) {
+          favorites.setPreset(stations.get(i), preset(i));
+        }
+      });
+    }
+  }
+
+  public void testFavoritesSetPresetOfFavorite() {
+    for (int size : SIZES) {
+      final FavoriteStationsRepository favorites = openFavorites(size);
+      final List<Station> stations = new ArrayList<Station>(OPERATIONS);
+      for (int i = 0; i < OPERATIONS; i++) {
+        stations.add(station(random.nextInt(size)));
+      }
+      time("Favorites set preset of favorite", size, new Operation() {
+        @Override
+        public void run(int i) {
+          favorites.setPreset(stations.get(i), preset(i));
+        }
+      });
+    }
+  }
+
+  public void testFavoritesLookup() {
+    for (int size : SIZES) {
+      final FavoriteStationsRepository favorites = openFavorites(size);
+      final String[] stationIds = new String[OPERATIONS];
+      for (int i = 0; i < OPERATIONS; i++) {
+        stationIds[i] = station(random.nextInt(size)).getId();
+      }
+      time("Favorites lookup", size, new Operation() {
+        @Override
+        public void run(int i) {
+          favorites.getFavoriteStationForStationId(stationIds[i]);
+        }
+      });
+    }
+  }
+
+  public void testFavoritesRemovePreset() {
+    for (int size : SIZES) {
+      final FavoriteStationsRepository favorites = openFavorites(size);
+      final String[] stationIds = new String[OPERATIONS];
+      for (int i = 0; i < OPERATIONS; i++) {
+        stationIds[i] = station(random.nextInt(size)).getId();
+      }
+      time("Favorites remove preset", size, new Operation() {
+        @Override
+        public void run(int i) {
+          favorites.removePreset(stationIds[i]);
+        }
+      });
+    }
+  }
+}